@@ -27,3 +27,7 @@ TARGET_POWERHAL_VARIANT := qcom
 # Releasetools
 TARGET_RECOVERY_UPDATER_LIBS := librecovery_updater_oppo
 TARGET_RELEASETOOLS_EXTENSIONS := device/oppo/common
+
+# SELinux
+BOARD_SEPOLICY_DIRS += \
+    device/oppo/common/sepolicy
@@ -34,3 +34,5 @@ LOCAL_RESOURCE_DIR := \
 LOCAL_MODULE_TAGS := optional
 
 include $(BUILD_PACKAGE)
+
+include $(call all-makefiles-under,$(LOCAL_PATH))
@@ -18,6 +18,7 @@ package com.cyanogenmod.settings.device;
 
 import android.os.Bundle;
 
+import com.cyanogenmod.settings.device.utils.HardwareCapabilities;
 import com.cyanogenmod.settings.device.utils.NodePreferenceActivity;
 
 import org.cyanogenmod.internal.util.ScreenType;
@@ -28,4 +29,9 @@ public class ButtonSettings extends NodePreferenceActivity {
         super.onCreate(savedInstanceState);
         addPreferencesFromResource(R.xml.button_panel);
     }
+
+    @Override
+    protected boolean isSupported(HardwareCapabilities capabilities) {
+        return capabilities.hasButtonProcs();
+    }
 }
@@ -22,6 +22,8 @@ import android.database.MatrixCursor;
 import android.provider.SearchIndexableResource;
 import android.provider.SearchIndexablesProvider;
 
+import com.cyanogenmod.settings.device.utils.HardwareCapabilities;
+
 import static android.provider.SearchIndexablesContract.COLUMN_INDEX_XML_RES_CLASS_NAME;
 import static android.provider.SearchIndexablesContract.COLUMN_INDEX_XML_RES_ICON_RESID;
 import static android.provider.SearchIndexablesContract.COLUMN_INDEX_XML_RES_INTENT_ACTION;
@@ -64,16 +66,17 @@ public class ConfigPanelSearchIndexablesProvider extends SearchIndexablesProvide
     @Override
     public Cursor queryXmlResources(String[] projection) {
         MatrixCursor cursor = new MatrixCursor(INDEXABLES_XML_RES_COLUMNS);
-        if (Startup.hasButtonProcs() /* show button panel */) {
+        HardwareCapabilities capabilities = HardwareCapabilities.get(getContext());
+        if (capabilities.hasButtonProcs() /* show button panel */) {
             cursor.addRow(generateResourceRef(INDEXABLE_RES[SEARCH_IDX_BUTTON_PANEL]));
         }
-        if (Startup.hasGestureService(getContext()) /* show gesture panel */) {
+        if (capabilities.hasGestureService() /* show gesture panel */) {
             cursor.addRow(generateResourceRef(INDEXABLE_RES[SEARCH_IDX_GESTURE_PANEL]));
         }
-        if (Startup.hasOClick() /* show oclick panel */) {
+        if (capabilities.hasOClick() /* show oclick panel */) {
             cursor.addRow(generateResourceRef(INDEXABLE_RES[SEARCH_IDX_OCLICK_PANEL]));
         }
-        if (Startup.hasTouchscreenGestures() /* show touchscreen panel */) {
+        if (capabilities.hasTouchscreenGestures() /* show touchscreen panel */) {
             cursor.addRow(generateResourceRef(INDEXABLE_RES[SEARCH_IDX_TOUCHSCREEN_PANEL]));
         }
         return cursor;
@@ -17,6 +17,7 @@
 package com.cyanogenmod.settings.device;
 
 import com.cyanogenmod.settings.device.utils.Constants;
+import com.cyanogenmod.settings.device.utils.HardwareCapabilities;
 import com.cyanogenmod.settings.device.utils.NodePreferenceActivity;
 
 import android.os.Bundle;
@@ -38,6 +39,11 @@ public class GesturePadSettings extends NodePreferenceActivity {
         p.setOnPreferenceChangeListener(this);
     }
 
+    @Override
+    protected boolean isSupported(HardwareCapabilities capabilities) {
+        return capabilities.hasGestureService();
+    }
+
     @Override
     public boolean onPreferenceChange(Preference preference, Object newValue) {
         if (preference.getKey().equals(Constants.TOUCHPAD_DOUBLETAP_KEY)) {
@@ -39,6 +39,7 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.SystemClock;
+import android.os.Trace;
 import android.preference.PreferenceManager;
 import android.util.Log;
 import android.view.InputDevice;
@@ -78,6 +79,13 @@ public class OclickService extends Service implements
 
     public static final String CANCEL_ALERT_PHONE = "cancel_alert_phone";
 
+    private static final long TRACE_TAG = Trace.TRACE_TAG_APP;
+    private static final String TRACE_CONNECT = "Oclick:connect";
+    private static final String TRACE_DISCOVERY = "Oclick:discoverServices";
+    private static final String TRACE_WRITE = "Oclick:writeCharacteristic";
+    private static final String TRACE_KEY = "Oclick:key";
+    private static final String TRACE_RSSI = "Oclick:rssi";
+
     private static final int RSSI_POLL_INTERVAL = 10000;
     private static final int DOUBLE_TAP_TIMEOUT = 1500;
 
@@ -186,8 +194,13 @@ public class OclickService extends Service implements
         @Override
         public void onConnectionStateChange(BluetoothGatt gatt, int status, final int newState) {
             Log.d(TAG, "onConnectionStateChange " + status + " " + newState);
+            if (mConnectionState != ConnectionState.CONNECTED) {
+                // Outcome of the connection attempt
+                Trace.asyncTraceEnd(TRACE_TAG, TRACE_CONNECT, 0);
+            }
             if (newState == BluetoothGatt.STATE_CONNECTED) {
                 mConnectionState = ConnectionState.CONNECTED;
+                Trace.asyncTraceBegin(TRACE_TAG, TRACE_DISCOVERY, 0);
                 gatt.discoverServices();
             } else if (newState == BluetoothGatt.STATE_DISCONNECTED) {
                 mBluetoothGatt.close();
@@ -202,6 +215,7 @@ public class OclickService extends Service implements
         @Override
         public void onServicesDiscovered(final BluetoothGatt gatt, int status) {
             Log.d(TAG, "onServicesDiscovered " + status);
+            Trace.asyncTraceEnd(TRACE_TAG, TRACE_DISCOVERY, 0);
 
             BluetoothGattService serviceV2 = gatt.getService(OCLICK2_SERVICE_UUID);
             BluetoothGattCharacteristic keyCharacteristic = null;
@@ -223,7 +237,7 @@ public class OclickService extends Service implements
                     /* SUPERVISION_TIMEOUT = 1000 */ (byte) 0xe8, 3
                 };
                 keyCharacteristic.setValue(params);
-                gatt.writeCharacteristic(keyCharacteristic);
+                writeCharacteristic(gatt, keyCharacteristic);
             } else {
                 // Register trigger notification (Used for camera/alarm)
                 BluetoothGattService service = gatt.getService(TRIGGER_SERVICE_UUID);
@@ -243,6 +257,7 @@ public class OclickService extends Service implements
         @Override
         public void onCharacteristicWrite(BluetoothGatt gatt,
                 BluetoothGattCharacteristic characteristic, int status) {
+            Trace.asyncTraceEnd(TRACE_TAG, TRACE_WRITE, 0);
             UUID uuid = characteristic.getService().getUuid();
             Log.d(TAG, "onCharacteristicWrite: service UUID " + uuid + " status " + status);
 
@@ -263,6 +278,12 @@ public class OclickService extends Service implements
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt,
                 BluetoothGattCharacteristic characteristic) {
+            Trace.traceBegin(TRACE_TAG, TRACE_KEY);
+            handleKey(characteristic);
+            Trace.traceEnd(TRACE_TAG);
+        }
+
+        private void handleKey(BluetoothGattCharacteristic characteristic) {
             Log.d(TAG, "Characteristic changed " + characteristic.getUuid());
 
             if (characteristic.getUuid().equals(OCLICK2_KEY_CHARACTERISTIC_UUID)) {
@@ -308,6 +329,7 @@ public class OclickService extends Service implements
         @Override
         public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
             Log.d(TAG, "Rssi value : " + rssi);
+            Trace.traceCounter(TRACE_TAG, TRACE_RSSI, rssi);
             if (rssi < -90 && !mAlerting) {
                 updateAlertState(true);
                 mAlerting = true;
@@ -457,7 +479,7 @@ public class OclickService extends Service implements
                 alertService.getCharacteristic(IMMEDIATE_ALERT_CHARACTERISTIC_UUID);
 
         alertCharacteristic.setValue(new byte[] { (byte) (doAlert ? 2 : 0) });
-        mBluetoothGatt.writeCharacteristic(alertCharacteristic);
+        writeCharacteristic(mBluetoothGatt, alertCharacteristic);
     }
 
     private void updateLinkLossState() {
@@ -468,12 +490,22 @@ public class OclickService extends Service implements
                 service.getCharacteristic(LINK_LOSS_CHARACTERISTIC_UUID);
 
         characteristic.setValue(new byte[] { (byte) (alert ? 2 : 0) });
-        mBluetoothGatt.writeCharacteristic(characteristic);
+        writeCharacteristic(mBluetoothGatt, characteristic);
+    }
+
+    private void writeCharacteristic(BluetoothGatt gatt,
+            BluetoothGattCharacteristic characteristic) {
+        // Closed by onCharacteristicWrite, or right away if the write was not started
+        Trace.asyncTraceBegin(TRACE_TAG, TRACE_WRITE, 0);
+        if (!gatt.writeCharacteristic(characteristic)) {
+            Trace.asyncTraceEnd(TRACE_TAG, TRACE_WRITE, 0);
+        }
     }
 
     private void connect() {
         if (mBluetoothDevice != null && mBluetoothGatt == null) {
             Log.d(TAG, "Connecting to device " + mBluetoothDevice);
+            Trace.asyncTraceBegin(TRACE_TAG, TRACE_CONNECT, 0);
             mBluetoothGatt = mBluetoothDevice.connectGatt(this, false, mGattCallback);
         }
     }
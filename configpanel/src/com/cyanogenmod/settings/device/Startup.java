@@ -16,6 +16,7 @@
 
 package com.cyanogenmod.settings.device;
 
+import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothManager;
@@ -26,11 +27,11 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.hardware.input.InputManager;
-import android.os.Build;
 import android.os.IBinder;
 import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.os.SystemClock;
+import android.os.Trace;
 import android.os.UserHandle;
 import android.preference.PreferenceManager;
 import android.service.gesture.IGestureService;
@@ -40,95 +41,66 @@ import android.view.InputEvent;
 import android.view.KeyCharacterMap;
 import android.view.KeyEvent;
 
-import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.cyanogenmod.settings.device.utils.Constants;
-
-import org.cyanogenmod.internal.util.FileUtils;
+import com.cyanogenmod.settings.device.utils.DevicePreference;
+import com.cyanogenmod.settings.device.utils.HardwareCapabilities;
+import com.cyanogenmod.settings.device.utils.NodeStore;
 
 public class Startup extends BroadcastReceiver {
 
     private static final String TAG = Startup.class.getSimpleName();
 
+    private static final long TRACE_TAG = Trace.TRACE_TAG_APP;
+
+    // One thread per restore step, released again shortly after boot
+    private static final int RESTORE_THREADS = 4;
+    private static final long RESTORE_KEEP_ALIVE_SECONDS = 10;
+    private static ExecutorService sRestoreExecutor;
+
+    // Backoff for drivers that were not ready yet, about half a minute in total
+    private static final long RETRY_INITIAL_DELAY_MS = 250;
+    private static final long RETRY_MAX_DELAY_MS = 8000;
+    private static final int RETRY_MAX_ATTEMPTS = 8;
+
+    // Sent to ourselves to run a restore step again
+    private static final String ACTION_RETRY_RESTORE =
+            "com.cyanogenmod.settings.device.action.RETRY_RESTORE";
+    private static final String EXTRA_STEP = "step";
+    private static final String EXTRA_ATTEMPT = "attempt";
+    private static final String EXTRA_START_TIME = "start_time";
+
     @Override
     public void onReceive(final Context context, final Intent intent) {
         final String action = intent.getAction();
         if (cyanogenmod.content.Intent.ACTION_INITIALIZE_CM_HARDWARE.equals(action)) {
-            // Disable touchscreen gesture settings if needed
-            if (!hasTouchscreenGestures()) {
-                disableComponent(context, TouchscreenGestureSettings.class.getName());
-            } else {
-                enableComponent(context, TouchscreenGestureSettings.class.getName());
-                // Restore nodes to saved preference values
-                for (String pref : Constants.sGesturePrefKeys) {
-                    boolean value = Constants.isPreferenceEnabled(context, pref);
-                    String node = Constants.sBooleanNodePreferenceMap.get(pref);
-                    if (!FileUtils.writeLine(node, value ? "1" : "0")) {
-                        Log.w(TAG, "Write to node " + node +
-                            " failed while restoring saved preference values");
-                    }
-                }
-            }
-
-            // Disable backtouch settings if needed
-            if (hasGestureService(context)) {
-                disableComponent(context, GesturePadSettings.class.getName());
-            } else {
-                IBinder b = ServiceManager.getService("gesture");
-                IGestureService sInstance = IGestureService.Stub.asInterface(b);
-
-                boolean value = Constants.isPreferenceEnabled(context,
-                        Constants.TOUCHPAD_STATE_KEY);
-                String node = Constants.sBooleanNodePreferenceMap.get(
-                        Constants.TOUCHPAD_STATE_KEY);
-                if (!FileUtils.writeLine(node, value ? "1" : "0")) {
-                    Log.w(TAG, "Write to node " + node +
-                            " failed while restoring touchpad enable state");
-                }
-
-                // Set longPress event
-                toggleLongPress(context, sInstance, Constants.isPreferenceEnabled(
-                        context, Constants.TOUCHPAD_LONGPRESS_KEY));
-
-                // Set doubleTap event
-                toggleDoubleTap(context, sInstance, Constants.isPreferenceEnabled(
-                        context, Constants.TOUCHPAD_DOUBLETAP_KEY));
-            }
-
-            // Disable button settings if needed
-            if (!hasButtonProcs()) {
-                disableComponent(context, ButtonSettings.class.getName());
-            } else {
-                enableComponent(context, ButtonSettings.class.getName());
-
-                // Restore nodes to saved preference values
-                for (String pref : Constants.sButtonPrefKeys) {
-                    String value;
-                    String node;
-                    if (Constants.sStringNodePreferenceMap.containsKey(pref)) {
-                        value = Constants.getPreferenceString(context, pref);
-                        node = Constants.sStringNodePreferenceMap.get(pref);
-                    } else {
-                        value = Constants.isPreferenceEnabled(context, pref) ?
-                                "1" : "0";
-                        node = Constants.sBooleanNodePreferenceMap.get(pref);
-                    }
-                    if (!FileUtils.writeLine(node, value)) {
-                        Log.w(TAG, "Write to node " + node +
-                            " failed while restoring saved preference values");
-                    }
-                }
-            }
-
-            // Disable O-Click settings if needed
-            if (!hasOClick()) {
-                disableComponent(context, BluetoothInputSettings.class.getName());
-                disableComponent(context, OclickService.class.getName());
-            } else {
-                updateOClickServiceState(context);
+            // Slow touch controllers must not hold up the other boot receivers,
+            // so the subsystems are restored in parallel off the main thread
+            final Context appContext = context.getApplicationContext();
+            // Every node is written again, whatever the store remembers
+            NodeStore.getInstance().invalidateAll();
+            new Restore(appContext, createSteps(appContext), 0,
+                    SystemClock.elapsedRealtime()).start(goAsync());
+        } else if (ACTION_RETRY_RESTORE.equals(action)) {
+            final Context appContext = context.getApplicationContext();
+            final ArrayList<RestoreStep> steps = createSteps(appContext);
+            final int index = intent.getIntExtra(EXTRA_STEP, -1);
+            if (index < 0 || index >= steps.size()) {
+                return;
             }
+            ArrayList<RestoreStep> retry = new ArrayList<>();
+            retry.add(steps.get(index));
+            new Restore(appContext, retry, intent.getIntExtra(EXTRA_ATTEMPT, 0),
+                    intent.getLongExtra(EXTRA_START_TIME, 0)).start(goAsync());
         } else if (intent.getAction().equals(BluetoothAdapter.ACTION_STATE_CHANGED)) {
-            if (hasOClick()) {
+            if (HardwareCapabilities.get(context).hasOClick()) {
                 updateOClickServiceState(context);
             }
         } else if (intent.getAction().equals("cyanogenmod.intent.action.GESTURE_CAMERA")) {
@@ -141,6 +113,315 @@ public class Startup extends BroadcastReceiver {
         }
     }
 
+    /**
+     * Returns the restore steps. A retry names its step by the index into
+     * this list.
+     */
+    private static ArrayList<RestoreStep> createSteps(final Context context) {
+        ArrayList<RestoreStep> steps = new ArrayList<>();
+        steps.add(new RestoreStep("touchscreen", true) {
+            @Override
+            NodeStore.Batch restore(HardwareCapabilities capabilities) {
+                return restoreTouchscreen(context, capabilities);
+            }
+
+            @Override
+            boolean isHardwareLate(HardwareCapabilities capabilities) {
+                // Slow touch controllers are the reason for retrying at all,
+                // but a device that never had the nodes is not going to
+                return !capabilities.hasTouchscreenGestures()
+                        && HardwareCapabilities.hasSeenTouchscreenGestures(context);
+            }
+        });
+        steps.add(new RestoreStep("touchpad", true) {
+            @Override
+            NodeStore.Batch restore(HardwareCapabilities capabilities) {
+                return restoreTouchpad(context, capabilities);
+            }
+        });
+        steps.add(new RestoreStep("buttons", false) {
+            @Override
+            NodeStore.Batch restore(HardwareCapabilities capabilities) {
+                return restoreButtons(context, capabilities);
+            }
+        });
+        steps.add(new RestoreStep("oclick", false) {
+            @Override
+            NodeStore.Batch restore(HardwareCapabilities capabilities) {
+                return restoreOClick(context, capabilities);
+            }
+        });
+        for (int i = 0; i < steps.size(); i++) {
+            steps.get(i).mIndex = i;
+        }
+        return steps;
+    }
+
+    /**
+     * @return the committed node writes, or null if there were none
+     */
+    private static NodeStore.Batch restoreTouchscreen(Context context,
+            HardwareCapabilities capabilities) {
+        // Disable touchscreen gesture settings if needed
+        if (!capabilities.hasTouchscreenGestures()) {
+            disableComponent(context, TouchscreenGestureSettings.class.getName());
+            return null;
+        }
+        enableComponent(context, TouchscreenGestureSettings.class.getName());
+        // The key handler's gesture node policy owns the nodes and sets them
+        // up from the published configuration
+        Constants.writeGestureActionConfig(context, null, null);
+        Constants.writeGestureNodeConfig(context, null, false);
+        return null;
+    }
+
+    private static NodeStore.Batch restoreTouchpad(Context context,
+            HardwareCapabilities capabilities) {
+        // Disable backtouch settings if needed
+        if (capabilities.hasGestureService()) {
+            disableComponent(context, GesturePadSettings.class.getName());
+            return null;
+        }
+        IBinder b = ServiceManager.getService("gesture");
+        IGestureService sInstance = IGestureService.Stub.asInterface(b);
+
+        boolean value = Constants.isPreferenceEnabled(context,
+                Constants.TOUCHPAD_STATE_KEY);
+        String node = Constants.getNode(Constants.TOUCHPAD_STATE_KEY);
+        NodeStore.Batch batch = NodeStore.getInstance().batch().put(node, value);
+        batch.commit();
+
+        // Set longPress event
+        toggleLongPress(context, sInstance, Constants.isPreferenceEnabled(
+                context, Constants.TOUCHPAD_LONGPRESS_KEY));
+
+        // Set doubleTap event
+        toggleDoubleTap(context, sInstance, Constants.isPreferenceEnabled(
+                context, Constants.TOUCHPAD_DOUBLETAP_KEY));
+        return batch;
+    }
+
+    private static NodeStore.Batch restoreButtons(Context context,
+            HardwareCapabilities capabilities) {
+        // Disable button settings if needed
+        if (!capabilities.hasButtonProcs()) {
+            disableComponent(context, ButtonSettings.class.getName());
+            return null;
+        }
+        enableComponent(context, ButtonSettings.class.getName());
+
+        // Restore nodes to saved preference values
+        NodeStore.Batch batch = NodeStore.getInstance().batch();
+        for (DevicePreference pref : Constants.sButtonPrefs) {
+            batch.put(pref.getNode(), pref.getNodeValue(context));
+        }
+        batch.commit();
+
+        // Bind the actions of the slider positions
+        Constants.writeGestureActionConfig(context, null, null);
+        return batch;
+    }
+
+    private static NodeStore.Batch restoreOClick(Context context,
+            HardwareCapabilities capabilities) {
+        // Disable O-Click settings if needed
+        if (!capabilities.hasOClick()) {
+            disableComponent(context, BluetoothInputSettings.class.getName());
+            disableComponent(context, OclickService.class.getName());
+        } else {
+            updateOClickServiceState(context);
+        }
+        return null;
+    }
+
+    /**
+     * One independently restorable subsystem.
+     */
+    private abstract static class RestoreStep {
+        final String mName;
+        // Built once, so tracing a step costs nothing while it is disabled
+        final String mTraceName;
+        // Whether nodes or hardware missing at boot are expected to show up
+        // later, i.e. are retried
+        final boolean mRetryMissing;
+        // Index into the list of steps
+        int mIndex;
+
+        RestoreStep(String name, boolean retryMissing) {
+            mName = name;
+            mTraceName = "Startup:" + name;
+            mRetryMissing = retryMissing;
+        }
+
+        /**
+         * @return the committed node writes, or null if there were none
+         */
+        abstract NodeStore.Batch restore(HardwareCapabilities capabilities);
+
+        /**
+         * Whether the step found its hardware missing, but expects it to
+         * show up once its driver is loaded. Only asked if the step retries
+         * missing nodes.
+         */
+        boolean isHardwareLate(HardwareCapabilities capabilities) {
+            return false;
+        }
+    }
+
+    /**
+     * Runs restore steps on the restore executor, and finishes the broadcast
+     * with a single report once all are done.
+     *
+     * A step whose hardware is late, or that could not write all its nodes,
+     * is run again later with exponential backoff, until it succeeds
+     * or the attempts are used up. The retries are alarms rather than
+     * delayed tasks, as the process may well be killed once the broadcast is
+     * finished, and holding the broadcast instead would delay the other boot
+     * receivers. Each retry runs the whole step again, which re-probes the
+     * hardware and enables its settings once it is there.
+     */
+    private static final class Restore {
+        private final Context mContext;
+        private final ArrayList<RestoreStep> mSteps;
+        private final int mAttempt;
+        // Elapsed realtime the boot restore started at
+        private final long mStartTime;
+        // Retries of different steps may run at the same time
+        private final int mTraceCookie;
+        private final StringBuilder mReport = new StringBuilder();
+        private PendingResult mResult;
+        private long mStartNanos;
+        private int mRemaining;
+        private boolean mFailed;
+
+        /**
+         * @param attempt the number of retries before this one
+         */
+        Restore(Context context, ArrayList<RestoreStep> steps, int attempt, long startTime) {
+            mContext = context;
+            mSteps = steps;
+            mAttempt = attempt;
+            mStartTime = startTime;
+            mTraceCookie = attempt == 0 ? 0
+                    : steps.get(0).mIndex * (RETRY_MAX_ATTEMPTS + 1) + attempt;
+        }
+
+        synchronized void start(PendingResult result) {
+            mResult = result;
+            mStartNanos = SystemClock.elapsedRealtimeNanos();
+            mRemaining = mSteps.size();
+            Trace.asyncTraceBegin(TRACE_TAG, "Startup:initialize", mTraceCookie);
+            for (final RestoreStep step : mSteps) {
+                getRestoreExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        runStep(step);
+                    }
+                });
+            }
+        }
+
+        private void runStep(RestoreStep step) {
+            Trace.traceBegin(TRACE_TAG, step.mTraceName);
+            final long startNanos = SystemClock.elapsedRealtimeNanos();
+            int pending;
+            boolean late = false;
+            try {
+                // Looks for hardware that has not been found yet again
+                HardwareCapabilities capabilities = HardwareCapabilities.reprobe(mContext);
+                NodeStore.Batch batch = step.restore(capabilities);
+                late = step.mRetryMissing && step.isHardwareLate(capabilities);
+                pending = batch != null ? batch.getRetries(step.mRetryMissing).size() : 0;
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Restoring " + step.mName + " failed", e);
+                pending = -1;
+            }
+            Trace.traceEnd(TRACE_TAG);
+            if (late || pending > 0) {
+                scheduleRetry(step);
+            } else if (mAttempt > 0 && pending == 0) {
+                Log.i(TAG, "Restored " + step.mName + " after " + mAttempt + " retries, "
+                        + (SystemClock.elapsedRealtime() - mStartTime)
+                        + "ms after boot restore started");
+            }
+            onStepDone(step, late, pending, SystemClock.elapsedRealtimeNanos() - startNanos);
+        }
+
+        private void scheduleRetry(RestoreStep step) {
+            if (mAttempt >= RETRY_MAX_ATTEMPTS) {
+                Log.w(TAG, "Giving up restoring " + step.mName + " after " + mAttempt
+                        + " retries and " + (SystemClock.elapsedRealtime() - mStartTime) + "ms");
+                return;
+            }
+            final int index = step.mIndex;
+            Intent intent = new Intent(ACTION_RETRY_RESTORE)
+                    .setClass(mContext, Startup.class)
+                    .putExtra(EXTRA_STEP, index)
+                    .putExtra(EXTRA_ATTEMPT, mAttempt + 1)
+                    .putExtra(EXTRA_START_TIME, mStartTime);
+            // One alarm per step, so the steps do not replace each other's
+            PendingIntent pi = PendingIntent.getBroadcast(mContext, index, intent,
+                    PendingIntent.FLAG_UPDATE_CURRENT);
+            final long delayMs = Math.min(RETRY_INITIAL_DELAY_MS << mAttempt,
+                    RETRY_MAX_DELAY_MS);
+            AlarmManager am = (AlarmManager) mContext.getSystemService(Context.ALARM_SERVICE);
+            am.setExact(AlarmManager.ELAPSED_REALTIME,
+                    SystemClock.elapsedRealtime() + delayMs, pi);
+        }
+
+        /**
+         * @param pending the number of node writes left for retrying, or -1
+         *                if the step crashed
+         */
+        private synchronized void onStepDone(RestoreStep step, boolean late, int pending,
+                long durationNanos) {
+            mReport.append(' ').append(step.mName).append('=')
+                    .append(durationNanos / 1000000L).append("ms");
+            if (late) {
+                mReport.append("(late)");
+                mFailed = true;
+            } else if (pending != 0) {
+                mReport.append(pending < 0 ? "(crashed)" : "(" + pending + " pending)");
+                mFailed = true;
+            }
+            if (--mRemaining != 0) {
+                return;
+            }
+
+            final String report = (mAttempt > 0 ? "Retry " + mAttempt + " restored" : "Restored")
+                    + " hardware state in "
+                    + (SystemClock.elapsedRealtimeNanos() - mStartNanos) / 1000000L
+                    + "ms:" + mReport;
+            if (mFailed) {
+                Log.w(TAG, report);
+            } else {
+                Log.i(TAG, report);
+            }
+            Trace.asyncTraceEnd(TRACE_TAG, "Startup:initialize", mTraceCookie);
+            mResult.finish();
+        }
+    }
+
+    private static synchronized ExecutorService getRestoreExecutor() {
+        if (sRestoreExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                    RESTORE_THREADS, RESTORE_THREADS,
+                    RESTORE_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            return new Thread(r, "Startup-restore-" + mCount.incrementAndGet());
+                        }
+                    });
+            // The threads are only needed once per boot
+            executor.allowCoreThreadTimeOut(true);
+            sRestoreExecutor = executor;
+        }
+        return sRestoreExecutor;
+    }
+
     public static void toggleDoubleTap(Context context, IGestureService gestureService,
             boolean enable) {
         PendingIntent pendingIntent = null;
@@ -179,37 +460,26 @@ public class Startup extends BroadcastReceiver {
                 InputManager.INJECT_INPUT_EVENT_MODE_WAIT_FOR_FINISH);
     }
 
-    static boolean hasGestureService(Context context) {
-        return !context.getResources().getBoolean(
-                com.android.internal.R.bool.config_enableGestureService);
-    }
-
-    static  boolean hasTouchscreenGestures() {
-        return new File(Constants.TOUCHSCREEN_CAMERA_NODE).exists() &&
-            new File(Constants.TOUCHSCREEN_MUSIC_NODE).exists() &&
-            new File(Constants.TOUCHSCREEN_FLASHLIGHT_NODE).exists();
-    }
-
-    static boolean hasButtonProcs() {
-        return (new File(Constants.NOTIF_SLIDER_TOP_NODE).exists() &&
-            new File(Constants.NOTIF_SLIDER_MIDDLE_NODE).exists() &&
-            new File(Constants.NOTIF_SLIDER_BOTTOM_NODE).exists()) ||
-            new File(Constants.BUTTON_SWAP_NODE).exists();
-    }
-
-    static boolean hasOClick() {
-        return Build.MODEL.equals("N1") || Build.MODEL.equals("N3");
-    }
-
-    private void disableComponent(Context context, String component) {
+    private static void disableComponent(Context context, String component) {
+        final boolean tracing = Trace.isTagEnabled(TRACE_TAG);
+        if (tracing) {
+            Trace.traceBegin(TRACE_TAG, "Startup:disable " + component);
+        }
         ComponentName name = new ComponentName(context, component);
         PackageManager pm = context.getPackageManager();
         pm.setComponentEnabledSetting(name,
                 PackageManager.COMPONENT_ENABLED_STATE_DISABLED,
                 PackageManager.DONT_KILL_APP);
+        if (tracing) {
+            Trace.traceEnd(TRACE_TAG);
+        }
     }
 
-    private void enableComponent(Context context, String component) {
+    private static void enableComponent(Context context, String component) {
+        final boolean tracing = Trace.isTagEnabled(TRACE_TAG);
+        if (tracing) {
+            Trace.traceBegin(TRACE_TAG, "Startup:enable " + component);
+        }
         ComponentName name = new ComponentName(context, component);
         PackageManager pm = context.getPackageManager();
         if (pm.getComponentEnabledSetting(name)
@@ -218,9 +488,12 @@ public class Startup extends BroadcastReceiver {
                     PackageManager.COMPONENT_ENABLED_STATE_ENABLED,
                     PackageManager.DONT_KILL_APP);
         }
+        if (tracing) {
+            Trace.traceEnd(TRACE_TAG);
+        }
     }
 
-    private void updateOClickServiceState(Context context) {
+    private static void updateOClickServiceState(Context context) {
         BluetoothManager btManager = (BluetoothManager)
                 context.getSystemService(Context.BLUETOOTH_SERVICE);
         BluetoothAdapter adapter = btManager.getAdapter();
@@ -17,9 +17,13 @@
 package com.cyanogenmod.settings.device;
 
 import android.os.Bundle;
+import android.preference.ListPreference;
 import android.preference.Preference;
 import android.preference.SwitchPreference;
 
+import com.cyanogenmod.settings.device.utils.Constants;
+import com.cyanogenmod.settings.device.utils.DevicePreference;
+import com.cyanogenmod.settings.device.utils.HardwareCapabilities;
 import com.cyanogenmod.settings.device.utils.NodePreferenceActivity;
 
 import cyanogenmod.providers.CMSettings;
@@ -38,16 +42,34 @@ public class TouchscreenGestureSettings extends NodePreferenceActivity {
 
         mHapticFeedback = (SwitchPreference) findPreference(KEY_HAPTIC_FEEDBACK);
         mHapticFeedback.setOnPreferenceChangeListener(this);
+
+        for (DevicePreference pref : Constants.sGestureActionPrefs) {
+            ListPreference action = (ListPreference) findPreference(pref.getKey());
+            action.setValue(pref.getString(this));
+            action.setOnPreferenceChangeListener(this);
+        }
+    }
+
+    @Override
+    protected boolean isSupported(HardwareCapabilities capabilities) {
+        return capabilities.hasTouchscreenGestures();
     }
 
     @Override
     public boolean onPreferenceChange(Preference preference, Object newValue) {
         final String key = preference.getKey();
+        final DevicePreference pref = Constants.getPreference(key);
         if (KEY_HAPTIC_FEEDBACK.equals(key)) {
             final boolean value = (Boolean) newValue;
             CMSettings.System.putInt(getContentResolver(),
                     CMSettings.System.TOUCHSCREEN_GESTURE_HAPTIC_FEEDBACK, value ? 1 : 0);
             return true;
+        } else if (pref != null && pref.getScanCode() != 0) {
+            Constants.writeGestureActionConfig(this, key, (String) newValue);
+            return true;
+        } else if (Constants.isGesturePrefKey(key)) {
+            // The key handler writes the node
+            Constants.writeGestureNodeConfig(this, key, (Boolean) newValue);
         }
 
         return super.onPreferenceChange(preference, newValue);
@@ -20,8 +20,7 @@ import java.util.HashMap;
 import java.util.Map;
 
 import android.content.Context;
-import android.content.SharedPreferences;
-import android.preference.PreferenceManager;
+import android.provider.Settings;
 
 public class Constants {
 
@@ -45,6 +44,31 @@ public class Constants {
     public static final String NOTIF_SLIDER_TOP_KEY = "keycode_top_position";
     public static final String NOTIF_SLIDER_MIDDLE_KEY = "keycode_middle_position";
     public static final String NOTIF_SLIDER_BOTTOM_KEY = "keycode_bottom_position";
+    public static final String TOUCHSCREEN_CIRCLE_ACTION_KEY = "touchscreen_gesture_circle_action";
+    public static final String TOUCHSCREEN_SWIPE_DOWN_ACTION_KEY =
+            "touchscreen_gesture_swipe_down_action";
+    public static final String TOUCHSCREEN_V_ACTION_KEY = "touchscreen_gesture_v_action";
+    public static final String TOUCHSCREEN_LTR_ACTION_KEY = "touchscreen_gesture_ltr_action";
+    public static final String TOUCHSCREEN_GTR_ACTION_KEY = "touchscreen_gesture_gtr_action";
+
+    // Secure settings key holding the gesture action configuration read by the
+    // key handler, which runs the actions as system
+    public static final String GESTURE_ACTIONS_SETTING = "device_gesture_actions";
+    // Secure settings key holding the gesture nodes the user enabled, the upper bound
+    // for the key handler's gesture node policy
+    public static final String GESTURE_NODES_SETTING = "device_gesture_nodes";
+
+    // Gesture scancodes
+    public static final int GESTURE_CIRCLE_SCANCODE = 250;
+    public static final int GESTURE_SWIPE_DOWN_SCANCODE = 251;
+    public static final int GESTURE_V_SCANCODE = 252;
+    public static final int GESTURE_LTR_SCANCODE = 253;
+    public static final int GESTURE_GTR_SCANCODE = 254;
+
+    // Scancodes the notification slider positions report
+    public static final int NOTIF_SLIDER_TOP_SCANCODE = 601;
+    public static final int NOTIF_SLIDER_MIDDLE_SCANCODE = 602;
+    public static final int NOTIF_SLIDER_BOTTOM_SCANCODE = 603;
 
     // Proc nodes
     public static final String TOUCH_PAD_NODE = "/proc/touchpad/enable";
@@ -64,59 +88,140 @@ public class Constants {
     public static final String NOTIF_SLIDER_MIDDLE_NODE = "/proc/tri-state-key/keyCode_middle";
     public static final String NOTIF_SLIDER_BOTTOM_NODE = "/proc/tri-state-key/keyCode_bottom";
 
-    // Holds <preference_key> -> <proc_node> mapping
-    public static final Map<String, String> sBooleanNodePreferenceMap = new HashMap<>();
-    public static final Map<String, String> sStringNodePreferenceMap = new HashMap<>();
+    // Device preferences, grouped by the subsystem restoring them
+    public static final DevicePreference[] sTouchscreenGesturePrefs = {
+        DevicePreference.forBoolean(TOUCHSCREEN_CAMERA_GESTURE_KEY, TOUCHSCREEN_CAMERA_NODE,
+                TOUCHSCREEN_CAMERA_DEFAULT),
+        DevicePreference.forBoolean(TOUCHSCREEN_MUSIC_GESTURE_KEY, TOUCHSCREEN_MUSIC_NODE,
+                TOUCHSCREEN_MUSIC_DEFAULT),
+        DevicePreference.forBoolean(TOUCHSCREEN_FLASHLIGHT_GESTURE_KEY,
+                TOUCHSCREEN_FLASHLIGHT_NODE, TOUCHSCREEN_FLASHLIGHT_DEFAULT)
+    };
+
+    public static final DevicePreference[] sGestureActionPrefs = {
+        DevicePreference.forGestureAction(TOUCHSCREEN_CIRCLE_ACTION_KEY,
+                GESTURE_CIRCLE_SCANCODE, "camera"),
+        DevicePreference.forGestureAction(TOUCHSCREEN_SWIPE_DOWN_ACTION_KEY,
+                GESTURE_SWIPE_DOWN_SCANCODE, "media:85"),
+        DevicePreference.forGestureAction(TOUCHSCREEN_V_ACTION_KEY,
+                GESTURE_V_SCANCODE, "torch"),
+        DevicePreference.forGestureAction(TOUCHSCREEN_LTR_ACTION_KEY,
+                GESTURE_LTR_SCANCODE, "media:88"),
+        DevicePreference.forGestureAction(TOUCHSCREEN_GTR_ACTION_KEY,
+                GESTURE_GTR_SCANCODE, "media:87")
+    };
+
+    public static final DevicePreference[] sTouchpadPrefs = {
+        DevicePreference.forBoolean(TOUCHPAD_STATE_KEY, TOUCH_PAD_NODE, TOUCH_PAD_DEFAULT),
+        DevicePreference.forBoolean(TOUCHPAD_DOUBLETAP_KEY, null, false),
+        DevicePreference.forBoolean(TOUCHPAD_LONGPRESS_KEY, null, false)
+    };
 
-    // Holds <preference_key> -> <default_values> mapping
-    public static final Map<String, Object> sNodeDefaultMap = new HashMap<>();
+    public static final DevicePreference[] sButtonPrefs = {
+        DevicePreference.forBoolean(BUTTON_SWAP_KEY, BUTTON_SWAP_NODE, false),
+        DevicePreference.forSliderPosition(NOTIF_SLIDER_TOP_KEY, NOTIF_SLIDER_TOP_NODE,
+                NOTIF_SLIDER_TOP_SCANCODE, "zen:3"),
+        DevicePreference.forSliderPosition(NOTIF_SLIDER_MIDDLE_KEY, NOTIF_SLIDER_MIDDLE_NODE,
+                NOTIF_SLIDER_MIDDLE_SCANCODE, "zen:1"),
+        DevicePreference.forSliderPosition(NOTIF_SLIDER_BOTTOM_KEY, NOTIF_SLIDER_BOTTOM_NODE,
+                NOTIF_SLIDER_BOTTOM_SCANCODE, "zen:0")
+    };
 
-    public static final String[] sGesturePrefKeys = {
-        TOUCHSCREEN_CAMERA_GESTURE_KEY,
-        TOUCHSCREEN_MUSIC_GESTURE_KEY,
-        TOUCHSCREEN_FLASHLIGHT_GESTURE_KEY
+    public static final DevicePreference[] sOClickPrefs = {
+        DevicePreference.forBoolean(OCLICK_FENCE_KEY, null, true),
+        DevicePreference.forBoolean(OCLICK_DISCONNECT_ALERT_KEY, null, true)
     };
 
-    public static final String[] sButtonPrefKeys = {
-        BUTTON_SWAP_KEY,
-        NOTIF_SLIDER_TOP_KEY,
-        NOTIF_SLIDER_MIDDLE_KEY,
-        NOTIF_SLIDER_BOTTOM_KEY
+    public static final DevicePreference[][] sSubsystemPrefs = {
+        sTouchscreenGesturePrefs, sGestureActionPrefs, sTouchpadPrefs, sButtonPrefs, sOClickPrefs
     };
 
+    // Holds <preference_key> -> <preference> mapping
+    private static final Map<String, DevicePreference> sPreferences = new HashMap<>();
+
     static {
-        sBooleanNodePreferenceMap.put(TOUCHPAD_STATE_KEY, TOUCH_PAD_NODE);
-        sBooleanNodePreferenceMap.put(TOUCHSCREEN_CAMERA_GESTURE_KEY, TOUCHSCREEN_CAMERA_NODE);
-        sBooleanNodePreferenceMap.put(TOUCHSCREEN_MUSIC_GESTURE_KEY, TOUCHSCREEN_MUSIC_NODE);
-        sBooleanNodePreferenceMap.put(TOUCHSCREEN_FLASHLIGHT_GESTURE_KEY,
-                TOUCHSCREEN_FLASHLIGHT_NODE);
-        sBooleanNodePreferenceMap.put(BUTTON_SWAP_KEY, BUTTON_SWAP_NODE);
-        sStringNodePreferenceMap.put(NOTIF_SLIDER_TOP_KEY, NOTIF_SLIDER_TOP_NODE);
-        sStringNodePreferenceMap.put(NOTIF_SLIDER_MIDDLE_KEY, NOTIF_SLIDER_MIDDLE_NODE);
-        sStringNodePreferenceMap.put(NOTIF_SLIDER_BOTTOM_KEY, NOTIF_SLIDER_BOTTOM_NODE);
-
-        sNodeDefaultMap.put(TOUCHPAD_STATE_KEY, TOUCH_PAD_DEFAULT);
-        sNodeDefaultMap.put(TOUCHSCREEN_CAMERA_GESTURE_KEY, TOUCHSCREEN_CAMERA_DEFAULT);
-        sNodeDefaultMap.put(TOUCHSCREEN_MUSIC_GESTURE_KEY, TOUCHSCREEN_MUSIC_DEFAULT);
-        sNodeDefaultMap.put(TOUCHSCREEN_FLASHLIGHT_GESTURE_KEY, TOUCHSCREEN_FLASHLIGHT_DEFAULT);
-        sNodeDefaultMap.put(TOUCHPAD_DOUBLETAP_KEY, false);
-        sNodeDefaultMap.put(TOUCHPAD_LONGPRESS_KEY, false);
-        sNodeDefaultMap.put(BUTTON_SWAP_KEY, false);
-        sNodeDefaultMap.put(NOTIF_SLIDER_TOP_KEY, "601");
-        sNodeDefaultMap.put(NOTIF_SLIDER_MIDDLE_KEY, "602");
-        sNodeDefaultMap.put(NOTIF_SLIDER_BOTTOM_KEY, "603");
-
-        sNodeDefaultMap.put(OCLICK_FENCE_KEY, true);
-        sNodeDefaultMap.put(OCLICK_DISCONNECT_ALERT_KEY, true);
+        for (DevicePreference[] prefs : sSubsystemPrefs) {
+            for (DevicePreference pref : prefs) {
+                sPreferences.put(pref.getKey(), pref);
+            }
+        }
+    }
+
+    /**
+     * @return the preference for the key, or null if there is none
+     */
+    public static DevicePreference getPreference(String key) {
+        return sPreferences.get(key);
+    }
+
+    /**
+     * @return the node the preference controls, or null
+     */
+    public static String getNode(String key) {
+        DevicePreference pref = sPreferences.get(key);
+        return pref != null ? pref.getNode() : null;
     }
 
     public static boolean isPreferenceEnabled(Context context, String key) {
-        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
-        return preferences.getBoolean(key, (Boolean) sNodeDefaultMap.get(key));
+        return sPreferences.get(key).getBoolean(context);
+    }
+
+    /**
+     * Publishes the gesture and slider position action mapping for the key
+     * handler as a list of {@code <scancode>=<action>} entries. If changedKey
+     * is not null, its value is taken from changedValue instead of the stored
+     * preference.
+     */
+    public static void writeGestureActionConfig(Context context, String changedKey,
+            String changedValue) {
+        StringBuilder config = new StringBuilder();
+        for (DevicePreference[] prefs : sSubsystemPrefs) {
+            for (DevicePreference pref : prefs) {
+                if (pref.getScanCode() == 0) {
+                    continue;
+                }
+                String action = pref.getKey().equals(changedKey)
+                        ? changedValue : pref.getString(context);
+                if (config.length() > 0) {
+                    config.append(',');
+                }
+                config.append(pref.getScanCode()).append('=').append(action);
+            }
+        }
+        Settings.Secure.putString(context.getContentResolver(),
+                GESTURE_ACTIONS_SETTING, config.toString());
+    }
+
+    /**
+     * Publishes the touchscreen gesture nodes the user enabled for the key
+     * handler as a comma separated list of node paths. If changedKey is not
+     * null, its value is taken from changedValue instead of the stored
+     * preference.
+     */
+    public static void writeGestureNodeConfig(Context context, String changedKey,
+            boolean changedValue) {
+        StringBuilder config = new StringBuilder();
+        for (DevicePreference pref : sTouchscreenGesturePrefs) {
+            boolean enabled = pref.getKey().equals(changedKey)
+                    ? changedValue : pref.getBoolean(context);
+            if (!enabled) {
+                continue;
+            }
+            if (config.length() > 0) {
+                config.append(',');
+            }
+            config.append(pref.getNode());
+        }
+        Settings.Secure.putString(context.getContentResolver(),
+                GESTURE_NODES_SETTING, config.toString());
     }
 
-    public static String getPreferenceString(Context context, String key) {
-        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
-        return preferences.getString(key, (String) sNodeDefaultMap.get(key));
+    public static boolean isGesturePrefKey(String key) {
+        for (DevicePreference pref : sTouchscreenGesturePrefs) {
+            if (pref.getKey().equals(key)) {
+                return true;
+            }
+        }
+        return false;
     }
 }
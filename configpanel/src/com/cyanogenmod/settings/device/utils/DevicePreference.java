@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.settings.device.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+/**
+ * Describes one of the device preferences: its key, its type and default,
+ * and the kernel node or gesture scancode it controls, if any. The
+ * descriptors are declared in {@link Constants}.
+ */
+public final class DevicePreference {
+
+    // Slider positions used to store the scancode reported in the position,
+    // 600 to 603, each standing for one of these actions
+    private static final int LEGACY_SLIDER_SCANCODE = 600;
+    private static final String[] LEGACY_SLIDER_ACTIONS = { "zen:2", "zen:3", "zen:1", "zen:0" };
+
+    private static SharedPreferences sPreferences;
+
+    private final String mKey;
+    private final String mNode;
+    private final int mScanCode;
+    private final boolean mIsBoolean;
+    private final boolean mBooleanDefault;
+    private final String mStringDefault;
+
+    private DevicePreference(String key, String node, int scanCode, boolean isBoolean,
+            boolean booleanDefault, String stringDefault) {
+        mKey = key;
+        mNode = node;
+        mScanCode = scanCode;
+        mIsBoolean = isBoolean;
+        mBooleanDefault = booleanDefault;
+        mStringDefault = stringDefault;
+    }
+
+    /**
+     * @param node the node written with "1" or "0", or null
+     */
+    static DevicePreference forBoolean(String key, String node, boolean defaultValue) {
+        return new DevicePreference(key, node, 0, true, defaultValue, null);
+    }
+
+    /**
+     * A gesture action, published to the key handler for the scancode.
+     */
+    static DevicePreference forGestureAction(String key, int scanCode, String defaultValue) {
+        return new DevicePreference(key, null, scanCode, false, false, defaultValue);
+    }
+
+    /**
+     * The action of a notification slider position. The position's node is
+     * written with the scancode, and the action is published to the key
+     * handler for it.
+     */
+    static DevicePreference forSliderPosition(String key, String node, int scanCode,
+            String defaultValue) {
+        return new DevicePreference(key, node, scanCode, false, false, defaultValue);
+    }
+
+    static synchronized SharedPreferences getPreferences(Context context) {
+        if (sPreferences == null) {
+            sPreferences = PreferenceManager.getDefaultSharedPreferences(
+                    context.getApplicationContext());
+        }
+        return sPreferences;
+    }
+
+    public String getKey() {
+        return mKey;
+    }
+
+    /**
+     * @return the controlled node, or null
+     */
+    public String getNode() {
+        return mNode;
+    }
+
+    /**
+     * @return the scancode of a gesture action or slider position, 0 otherwise
+     */
+    public int getScanCode() {
+        return mScanCode;
+    }
+
+    public boolean isBoolean() {
+        return mIsBoolean;
+    }
+
+    public boolean getBoolean(Context context) {
+        return getPreferences(context).getBoolean(mKey, mBooleanDefault);
+    }
+
+    public String getString(Context context) {
+        String value = getPreferences(context).getString(mKey, mStringDefault);
+        if (isSliderPosition() && value != null && value.indexOf(':') < 0) {
+            try {
+                return LEGACY_SLIDER_ACTIONS[Integer.parseInt(value) - LEGACY_SLIDER_SCANCODE];
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                return mStringDefault;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * @return the stored value in the form written to the node
+     */
+    public String getNodeValue(Context context) {
+        if (mIsBoolean) {
+            return getBoolean(context) ? "1" : "0";
+        }
+        if (isSliderPosition()) {
+            return String.valueOf(mScanCode);
+        }
+        return getString(context);
+    }
+
+    /**
+     * Whether this is the action of a slider position, whose node always
+     * holds the position's scancode.
+     */
+    public boolean isSliderPosition() {
+        return mNode != null && mScanCode != 0;
+    }
+}
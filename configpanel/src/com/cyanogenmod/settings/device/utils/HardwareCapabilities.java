@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.settings.device.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.util.Log;
+
+import org.cyanogenmod.internal.util.FileUtils;
+
+/**
+ * Which of the optional hardware features this device has.
+ *
+ * Hardware that was found does not go away while the device is running, so
+ * it is probed once per boot. The result is persisted together with the
+ * kernel's boot id, so that a restarted ConfigPanel process, e.g. one
+ * started for a Settings search, does not probe again. A driver may still
+ * show up late, though, so the boot restore looks for node-backed hardware
+ * that was not found again through {@link #reprobe(Context)}.
+ */
+public final class HardwareCapabilities {
+
+    private static final String TAG = HardwareCapabilities.class.getSimpleName();
+
+    private static final String BOOT_ID_NODE = "/proc/sys/kernel/random/boot_id";
+
+    private static final String PREFS_NAME = "hardware_capabilities";
+    private static final String KEY_BOOT_ID = "boot_id";
+    private static final String KEY_TOUCHSCREEN_GESTURES = "touchscreen_gestures";
+    private static final String KEY_BUTTON_PROCS = "button_procs";
+    private static final String KEY_OCLICK = "oclick";
+    private static final String KEY_GESTURE_SERVICE = "gesture_service";
+    // Kept across boots
+    private static final String KEY_TOUCHSCREEN_GESTURES_SEEN = "touchscreen_gestures_seen";
+
+    private static HardwareCapabilities sInstance;
+
+    private final boolean mTouchscreenGestures;
+    private final boolean mButtonProcs;
+    private final boolean mOClick;
+    private final boolean mGestureService;
+
+    private HardwareCapabilities(boolean touchscreenGestures, boolean buttonProcs,
+            boolean oclick, boolean gestureService) {
+        mTouchscreenGestures = touchscreenGestures;
+        mButtonProcs = buttonProcs;
+        mOClick = oclick;
+        mGestureService = gestureService;
+    }
+
+    public static synchronized HardwareCapabilities get(Context context) {
+        if (sInstance == null) {
+            sInstance = load(context);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Probes node-backed hardware that has not been found yet again, and
+     * persists the result if anything showed up.
+     */
+    public static synchronized HardwareCapabilities reprobe(Context context) {
+        HardwareCapabilities current = get(context);
+        if (!current.isComplete()) {
+            HardwareCapabilities capabilities = probe(context);
+            if (!capabilities.equals(current)) {
+                sInstance = capabilities;
+                save(context, capabilities);
+            }
+        }
+        return sInstance;
+    }
+
+    public boolean hasTouchscreenGestures() {
+        return mTouchscreenGestures;
+    }
+
+    public boolean hasButtonProcs() {
+        return mButtonProcs;
+    }
+
+    public boolean hasOClick() {
+        return mOClick;
+    }
+
+    /**
+     * Note this is true if the framework gesture service is disabled, i.e.
+     * if the touchpad is left to ConfigPanel.
+     */
+    public boolean hasGestureService() {
+        return mGestureService;
+    }
+
+    /**
+     * Whether touchscreen gestures were found on this or an earlier boot,
+     * i.e. whether missing ones can be expected to show up late rather than
+     * not at all.
+     */
+    public static boolean hasSeenTouchscreenGestures(Context context) {
+        return getPrefs(context).getBoolean(KEY_TOUCHSCREEN_GESTURES_SEEN, false);
+    }
+
+    private static HardwareCapabilities load(Context context) {
+        SharedPreferences prefs = getPrefs(context);
+        final String bootId = FileUtils.readOneLine(BOOT_ID_NODE);
+        if (bootId != null && bootId.equals(prefs.getString(KEY_BOOT_ID, null))) {
+            return new HardwareCapabilities(
+                    prefs.getBoolean(KEY_TOUCHSCREEN_GESTURES, false),
+                    prefs.getBoolean(KEY_BUTTON_PROCS, false),
+                    prefs.getBoolean(KEY_OCLICK, false),
+                    prefs.getBoolean(KEY_GESTURE_SERVICE, false));
+        }
+        HardwareCapabilities capabilities = probe(context);
+        save(context, capabilities);
+        return capabilities;
+    }
+
+    private static HardwareCapabilities probe(Context context) {
+        NodeStore store = NodeStore.getInstance();
+        HardwareCapabilities capabilities = new HardwareCapabilities(
+                store.exists(Constants.TOUCHSCREEN_CAMERA_NODE) &&
+                    store.exists(Constants.TOUCHSCREEN_MUSIC_NODE) &&
+                    store.exists(Constants.TOUCHSCREEN_FLASHLIGHT_NODE),
+                (store.exists(Constants.NOTIF_SLIDER_TOP_NODE) &&
+                    store.exists(Constants.NOTIF_SLIDER_MIDDLE_NODE) &&
+                    store.exists(Constants.NOTIF_SLIDER_BOTTOM_NODE)) ||
+                    store.exists(Constants.BUTTON_SWAP_NODE),
+                Build.MODEL.equals("N1") || Build.MODEL.equals("N3"),
+                !context.getResources().getBoolean(
+                        com.android.internal.R.bool.config_enableGestureService));
+        return capabilities;
+    }
+
+    /**
+     * Whether all node-backed hardware was found, i.e. probing again could
+     * not find anything new.
+     */
+    private boolean isComplete() {
+        return mTouchscreenGestures && mButtonProcs;
+    }
+
+    private static void save(Context context, HardwareCapabilities capabilities) {
+        Log.i(TAG, "Probed " + capabilities);
+        SharedPreferences.Editor editor = getPrefs(context).edit();
+        if (capabilities.mTouchscreenGestures) {
+            editor.putBoolean(KEY_TOUCHSCREEN_GESTURES_SEEN, true);
+        }
+        editor.putString(KEY_BOOT_ID, FileUtils.readOneLine(BOOT_ID_NODE))
+                .putBoolean(KEY_TOUCHSCREEN_GESTURES, capabilities.mTouchscreenGestures)
+                .putBoolean(KEY_BUTTON_PROCS, capabilities.mButtonProcs)
+                .putBoolean(KEY_OCLICK, capabilities.mOClick)
+                .putBoolean(KEY_GESTURE_SERVICE, capabilities.mGestureService)
+                .apply();
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getApplicationContext()
+                .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof HardwareCapabilities)) {
+            return false;
+        }
+        HardwareCapabilities other = (HardwareCapabilities) o;
+        return mTouchscreenGestures == other.mTouchscreenGestures
+                && mButtonProcs == other.mButtonProcs
+                && mOClick == other.mOClick
+                && mGestureService == other.mGestureService;
+    }
+
+    @Override
+    public int hashCode() {
+        return (mTouchscreenGestures ? 1 : 0) | (mButtonProcs ? 2 : 0)
+                | (mOClick ? 4 : 0) | (mGestureService ? 8 : 0);
+    }
+
+    @Override
+    public String toString() {
+        return "touchscreenGestures=" + mTouchscreenGestures + " buttonProcs=" + mButtonProcs
+                + " oclick=" + mOClick + " gestureService=" + mGestureService;
+    }
+}
@@ -16,32 +16,52 @@
 
 package com.cyanogenmod.settings.device.utils;
 
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.SystemClock;
+import android.os.Trace;
 import android.preference.Preference;
 import android.preference.Preference.OnPreferenceChangeListener;
 import android.preference.PreferenceActivity;
 import android.preference.ListPreference;
 import android.preference.SwitchPreference;
 import android.text.TextUtils;
+import android.util.Log;
 import android.view.MenuItem;
+import android.widget.Toast;
 
-import java.io.File;
+import com.cyanogenmod.settings.device.R;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 
-import org.cyanogenmod.internal.util.FileUtils;
 import org.cyanogenmod.internal.util.ScreenType;
 
 public class NodePreferenceActivity extends PreferenceActivity
         implements OnPreferenceChangeListener {
 
+    private static final String TAG = NodePreferenceActivity.class.getSimpleName();
+
+    private static final long TRACE_TAG = Trace.TRACE_TAG_APP;
+
+    protected final NodeStore mNodeStore = NodeStore.getInstance();
+
+    private final ArrayList<NodeLoadTask> mLoadTasks = new ArrayList<>();
+    private NodeWriteQueue mWriteQueue;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         getActionBar().setDisplayHomeAsUpEnabled(true);
+        mWriteQueue = new NodeWriteQueue(mNodeStore);
     }
 
     @Override
     protected void onResume() {
         super.onResume();
+        // The nodes may have been reset while we were in the background
+        mNodeStore.invalidateAll();
 
         // If running on a phone, remove padding around the listview
         if (!ScreenType.isTablet(this)) {
@@ -51,46 +71,176 @@ public class NodePreferenceActivity extends PreferenceActivity
 
     @Override
     public boolean onPreferenceChange(Preference preference, Object newValue) {
-        String node = Constants.sBooleanNodePreferenceMap.get(preference.getKey());
-        if (!TextUtils.isEmpty(node)) {
-            Boolean value = (Boolean) newValue;
-            FileUtils.writeLine(node, value ? "1" : "0");
+        DevicePreference pref = Constants.getPreference(preference.getKey());
+        if (pref == null || TextUtils.isEmpty(pref.getNode())) {
+            return false;
+        }
+        final String node = pref.getNode();
+        if (pref.isSliderPosition()) {
+            // The node keeps reporting the position's scancode, it is the
+            // action bound to it that changes
+            Constants.writeGestureActionConfig(this, pref.getKey(), (String) newValue);
+            queueWrite(preference, node, pref.getNodeValue(this),
+                    ((ListPreference) preference).getValue());
+            return true;
+        }
+        if (!pref.isBoolean()) {
+            queueWrite(preference, node, (String) newValue,
+                    ((ListPreference) preference).getValue());
             return true;
         }
-        node = Constants.sStringNodePreferenceMap.get(preference.getKey());
-        if (!TextUtils.isEmpty(node)) {
-            FileUtils.writeLine(node, (String) newValue);
+        if (Constants.isGesturePrefKey(pref.getKey())) {
+            // Only the key handler writes these nodes, from the published
+            // configuration
             return true;
         }
-        return false;
+        queueWrite(preference, node, (Boolean) newValue ? "1" : "0",
+                ((SwitchPreference) preference).isChecked());
+        return true;
+    }
+
+    /**
+     * Writes the node in the background. If that fails, the preference is
+     * set back to oldValue and the user is told.
+     */
+    private void queueWrite(final Preference preference, String node, String value,
+            final Object oldValue) {
+        mWriteQueue.write(node, value, new NodeWriteQueue.Callback() {
+            @Override
+            public void onWriteFailed(String node, NodeStore.Result result) {
+                Log.w(TAG, "Write to node " + node + " failed (" + result
+                        + "), restoring " + preference.getKey());
+                if (preference instanceof SwitchPreference) {
+                    ((SwitchPreference) preference).setChecked((Boolean) oldValue);
+                } else if (preference instanceof ListPreference) {
+                    ((ListPreference) preference).setValue((String) oldValue);
+                }
+                if (Constants.getPreference(preference.getKey()).isSliderPosition()) {
+                    Constants.writeGestureActionConfig(getApplicationContext(), null, null);
+                }
+                Toast.makeText(getApplicationContext(), R.string.node_write_failed,
+                        Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
+    /**
+     * Whether the hardware this panel configures is there. The panel closes
+     * itself if it is not, e.g. when it was opened before a late driver
+     * turned out to be missing after all.
+     */
+    protected boolean isSupported(HardwareCapabilities capabilities) {
+        return true;
+    }
+
+    /**
+     * Writes all node changes still waiting in the queue before returning.
+     */
+    protected void flushNodeWrites() {
+        mWriteQueue.flush();
     }
 
     @Override
     public void addPreferencesFromResource(int preferencesResId) {
         super.addPreferencesFromResource(preferencesResId);
-        // Initialize node preferences
-        for (String pref : Constants.sBooleanNodePreferenceMap.keySet()) {
-            SwitchPreference b = (SwitchPreference) findPreference(pref);
-            if (b == null) continue;
-            b.setOnPreferenceChangeListener(this);
-            String node = Constants.sBooleanNodePreferenceMap.get(pref);
-            if (new File(node).exists()) {
-                String curNodeValue = FileUtils.readOneLine(node);
-                b.setChecked(curNodeValue.equals("1"));
-            } else {
-                b.setEnabled(false);
+        // Initialize node preferences. Slow drivers must not stall the panel,
+        // so the preferences stay disabled until their nodes were read.
+        ArrayList<String> keys = new ArrayList<>();
+        for (DevicePreference[] prefs : Constants.sSubsystemPrefs) {
+            for (DevicePreference pref : prefs) {
+                if (pref.getNode() == null) continue;
+                Preference p = findPreference(pref.getKey());
+                if (p == null) continue;
+                p.setOnPreferenceChangeListener(this);
+                p.setEnabled(false);
+                keys.add(pref.getKey());
+            }
+        }
+        // Also checks the hardware, so this runs even without node preferences
+        new NodeLoadTask().execute(keys.toArray(new String[keys.size()]));
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        // We may not get the chance once we are in the background
+        flushNodeWrites();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mWriteQueue.quit();
+        for (NodeLoadTask task : mLoadTasks) {
+            task.cancel(false);
+        }
+        mLoadTasks.clear();
+    }
+
+    /**
+     * Checks the hardware capabilities, then reads the nodes of the given
+     * preference keys in one go and applies all values together.
+     * Preferences whose node is missing stay disabled.
+     */
+    private class NodeLoadTask extends AsyncTask<String, Void, Map<String, String>> {
+        private long mStartNanos;
+
+        @Override
+        protected void onPreExecute() {
+            mLoadTasks.add(this);
+            mStartNanos = SystemClock.elapsedRealtimeNanos();
+        }
+
+        @Override
+        protected Map<String, String> doInBackground(String... prefs) {
+            Trace.traceBegin(TRACE_TAG, "NodePreferenceActivity:load");
+            if (!isSupported(HardwareCapabilities.get(NodePreferenceActivity.this))) {
+                Trace.traceEnd(TRACE_TAG);
+                return null;
+            }
+            Map<String, String> values = new HashMap<>();
+            for (String pref : prefs) {
+                String node = Constants.getNode(pref);
+                if (!mNodeStore.exists(node)) {
+                    continue;
+                }
+                // The key handler switches the gesture nodes off while they
+                // are of no use, and the slider nodes hold scancodes rather
+                // than actions, so these nodes do not reflect the user's choice
+                if (Constants.getPreference(pref).isSliderPosition()) {
+                    values.put(pref, Constants.getPreference(pref)
+                            .getString(NodePreferenceActivity.this));
+                } else if (Constants.isGesturePrefKey(pref)) {
+                    values.put(pref, Constants.getPreference(pref)
+                            .getNodeValue(NodePreferenceActivity.this));
+                } else {
+                    values.put(pref, mNodeStore.read(node));
+                }
             }
+            Trace.traceEnd(TRACE_TAG);
+            return values;
         }
-        for (String pref : Constants.sStringNodePreferenceMap.keySet()) {
-            ListPreference l = (ListPreference) findPreference(pref);
-            if (l == null) continue;
-            l.setOnPreferenceChangeListener(this);
-            String node = Constants.sStringNodePreferenceMap.get(pref);
-            if (new File(node).exists()) {
-                l.setValue(FileUtils.readOneLine(node));
-            } else {
-                l.setEnabled(false);
+
+        @Override
+        protected void onPostExecute(Map<String, String> values) {
+            mLoadTasks.remove(this);
+            if (values == null) {
+                Log.w(TAG, "Hardware not available, closing " + getLocalClassName());
+                finish();
+                return;
+            }
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                Preference preference = findPreference(entry.getKey());
+                String value = entry.getValue();
+                if (preference instanceof SwitchPreference) {
+                    ((SwitchPreference) preference).setChecked("1".equals(value));
+                } else if (preference instanceof ListPreference) {
+                    ((ListPreference) preference).setValue(value);
+                }
+                preference.setEnabled(true);
             }
+            Log.d(TAG, "Loaded " + values.size() + " nodes in "
+                    + (SystemClock.elapsedRealtimeNanos() - mStartNanos) / 1000000L + "ms");
         }
     }
 
@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.settings.device.utils;
+
+import android.os.Trace;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.cyanogenmod.internal.util.FileUtils;
+
+/**
+ * Access to the kernel's proc and sysfs nodes.
+ *
+ * Node paths are the absolute paths used in {@link Constants}. They are
+ * resolved against the store's root. The root is "/" on the device, and a
+ * scratch directory holding a fake node tree elsewhere.
+ *
+ * The store remembers the value it last read from or wrote to each node,
+ * and skips writes that would not change it. A node may still change behind
+ * the store's back, e.g. when its driver resets across a suspend or is
+ * reloaded, so reads always go to the node and refresh what the store
+ * remembers, and callers coming back to the nodes after a while call
+ * {@link #invalidateAll()} first. Nodes are locked individually, so
+ * different nodes can be written from several threads at once.
+ */
+public final class NodeStore {
+
+    private static final String TAG = NodeStore.class.getSimpleName();
+
+    private static final long TRACE_TAG = Trace.TRACE_TAG_APP;
+
+    public enum Result {
+        /** The value was written. */
+        WRITTEN,
+        /** The node already held the value, nothing was written. */
+        UNCHANGED,
+        /** The node does not exist. */
+        MISSING,
+        /** Writing the node failed. */
+        FAILED;
+
+        public boolean isSuccess() {
+            return this == WRITTEN || this == UNCHANGED;
+        }
+    }
+
+    private static final class Node {
+        final File mFile;
+        // A node does not go away once it is there, but a missing one may
+        // still show up while its driver loads, so only presence is cached
+        boolean mExists;
+        // Value last read or written, or null if unknown
+        String mValue;
+
+        Node(File file) {
+            mFile = file;
+        }
+    }
+
+    private static NodeStore sInstance;
+
+    private final File mRoot;
+    private final ConcurrentHashMap<String, Node> mNodes = new ConcurrentHashMap<>();
+
+    public static synchronized NodeStore getInstance() {
+        if (sInstance == null) {
+            sInstance = new NodeStore(new File("/"));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Replaces the store returned by {@link #getInstance()}, e.g. with one
+     * rooted at a fake node tree.
+     */
+    @VisibleForTesting
+    public static synchronized void setInstance(NodeStore store) {
+        sInstance = store;
+    }
+
+    public NodeStore(File root) {
+        mRoot = root;
+    }
+
+    private Node getNode(String path) {
+        Node node = mNodes.get(path);
+        if (node == null) {
+            Node created = new Node(new File(mRoot, path));
+            node = mNodes.putIfAbsent(path, created);
+            if (node == null) {
+                node = created;
+            }
+        }
+        return node;
+    }
+
+    public boolean exists(String path) {
+        Node node = getNode(path);
+        synchronized (node) {
+            if (!node.mExists) {
+                node.mExists = node.mFile.exists();
+            }
+            return node.mExists;
+        }
+    }
+
+    /**
+     * Reads the first line of the node.
+     *
+     * @return null if the node does not exist or could not be read
+     */
+    public String read(String path) {
+        Node node = getNode(path);
+        synchronized (node) {
+            if (!exists(path)) {
+                return null;
+            }
+            node.mValue = FileUtils.readOneLine(node.mFile.getPath());
+            return node.mValue;
+        }
+    }
+
+    public Result write(String path, String value) {
+        Node node = getNode(path);
+        synchronized (node) {
+            if (!exists(path)) {
+                return Result.MISSING;
+            }
+            if (value.equals(node.mValue)) {
+                return Result.UNCHANGED;
+            }
+
+            // Section names are only built while tracing
+            final boolean tracing = Trace.isTagEnabled(TRACE_TAG);
+            if (tracing) {
+                Trace.traceBegin(TRACE_TAG, "NodeStore:write " + path);
+            }
+            final boolean written = FileUtils.writeLine(node.mFile.getPath(), value);
+            if (tracing) {
+                Trace.traceEnd(TRACE_TAG);
+            }
+
+            if (!written) {
+                // The node may hold anything now
+                node.mValue = null;
+                Log.w(TAG, "Write to node " + path + " failed");
+                return Result.FAILED;
+            }
+            node.mValue = value;
+            return Result.WRITTEN;
+        }
+    }
+
+    public Result write(String path, boolean value) {
+        return write(path, value ? "1" : "0");
+    }
+
+    /**
+     * Forgets the remembered value of the node, so the next write goes
+     * through even if it repeats the last one.
+     */
+    public void invalidate(String path) {
+        Node node = getNode(path);
+        synchronized (node) {
+            node.mValue = null;
+        }
+    }
+
+    /**
+     * Forgets the remembered values of all nodes.
+     */
+    public void invalidateAll() {
+        for (Node node : mNodes.values()) {
+            synchronized (node) {
+                node.mValue = null;
+            }
+        }
+    }
+
+    public Batch batch() {
+        return new Batch();
+    }
+
+    /**
+     * Collects writes to several nodes and commits them in the order they
+     * were added.
+     */
+    public final class Batch {
+        private final ArrayList<String> mPaths = new ArrayList<>();
+        private final ArrayList<String> mValues = new ArrayList<>();
+        private Map<String, Result> mResults;
+
+        private Batch() {
+        }
+
+        public Batch put(String path, String value) {
+            mPaths.add(path);
+            mValues.add(value);
+            return this;
+        }
+
+        public Batch put(String path, boolean value) {
+            return put(path, value ? "1" : "0");
+        }
+
+        /**
+         * @return the result of each write, keyed by node path
+         */
+        public Map<String, Result> commit() {
+            Map<String, Result> results = new LinkedHashMap<>();
+            for (int i = 0; i < mPaths.size(); i++) {
+                results.put(mPaths.get(i), write(mPaths.get(i), mValues.get(i)));
+            }
+            mResults = results;
+            return results;
+        }
+
+        /**
+         * Returns a batch of the writes that did not succeed in the last
+         * commit, to be committed again later.
+         *
+         * @param includeMissing whether writes to missing nodes are included
+         */
+        public Batch getRetries(boolean includeMissing) {
+            Batch retries = new Batch();
+            if (mResults == null) {
+                return retries;
+            }
+            for (int i = 0; i < mPaths.size(); i++) {
+                Result result = mResults.get(mPaths.get(i));
+                if (result == Result.FAILED || (includeMissing && result == Result.MISSING)) {
+                    retries.put(mPaths.get(i), mValues.get(i));
+                }
+            }
+            return retries;
+        }
+
+        public int size() {
+            return mPaths.size();
+        }
+
+        @Override
+        public String toString() {
+            return mPaths.toString();
+        }
+    }
+}
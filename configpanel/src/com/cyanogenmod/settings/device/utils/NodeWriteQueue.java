@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.settings.device.utils;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Writes nodes behind the caller's back.
+ *
+ * Writes are collected for a short window and then done on a background
+ * thread, so a switch flipped back and forth, or several slider mappings
+ * changed in a row, end up as one write per node with its last value.
+ * Failed writes are reported on the main thread, unless the queue has been
+ * quit by then.
+ */
+public final class NodeWriteQueue {
+
+    public interface Callback {
+        /**
+         * Called on the main thread if the node could not be written. The
+         * node holds the value it had before the first of the coalesced
+         * writes was queued.
+         */
+        void onWriteFailed(String node, NodeStore.Result result);
+    }
+
+    private static final long COALESCE_WINDOW_MS = 200;
+
+    private static final class Pending {
+        String mValue;
+        // Of the first coalesced write, which knows the value to roll back to
+        Callback mCallback;
+    }
+
+    private final NodeStore mStore;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final LinkedHashMap<String, Pending> mPending = new LinkedHashMap<>();
+    // Whether the window is open, i.e. a drain has been scheduled
+    private boolean mScheduled;
+    // Held while draining, so a flush and the background drain never write
+    // one node out of order
+    private final Object mDrainLock = new Object();
+    // Only touched on the main thread
+    private boolean mQuit;
+
+    public NodeWriteQueue(NodeStore store) {
+        mStore = store;
+        mThread = new HandlerThread(NodeWriteQueue.class.getSimpleName());
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Queues a write, replacing any write to the node still pending.
+     *
+     * @param callback told if the write fails, may be null
+     */
+    public void write(String node, String value, Callback callback) {
+        synchronized (mPending) {
+            Pending pending = mPending.get(node);
+            if (pending == null) {
+                pending = new Pending();
+                pending.mCallback = callback;
+                mPending.put(node, pending);
+            }
+            pending.mValue = value;
+            if (!mScheduled) {
+                mScheduled = true;
+                mHandler.postDelayed(mDrainRunnable, COALESCE_WINDOW_MS);
+            }
+        }
+    }
+
+    public void write(String node, boolean value, Callback callback) {
+        write(node, value ? "1" : "0", callback);
+    }
+
+    /**
+     * Does all pending writes on the calling thread before returning. If
+     * the background thread is draining the queue, waits for it first.
+     */
+    public void flush() {
+        mHandler.removeCallbacks(mDrainRunnable);
+        drain();
+    }
+
+    /**
+     * Flushes the queue and stops its thread. Failures not reported yet are
+     * dropped. Must be called on the main thread, and the queue must not be
+     * used afterwards.
+     */
+    public void quit() {
+        flush();
+        mThread.quitSafely();
+        mQuit = true;
+        mMainHandler.removeCallbacksAndMessages(null);
+    }
+
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    private void drain() {
+        synchronized (mDrainLock) {
+            drainLocked();
+        }
+    }
+
+    private void drainLocked() {
+        synchronized (mPending) {
+            mScheduled = false;
+        }
+        while (true) {
+            final String node;
+            final Pending pending;
+            synchronized (mPending) {
+                Iterator<Map.Entry<String, Pending>> it = mPending.entrySet().iterator();
+                if (!it.hasNext()) {
+                    return;
+                }
+                Map.Entry<String, Pending> entry = it.next();
+                it.remove();
+                node = entry.getKey();
+                pending = entry.getValue();
+            }
+
+            final NodeStore.Result result = mStore.write(node, pending.mValue);
+            if (!result.isSuccess() && pending.mCallback != null) {
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!mQuit) {
+                            pending.mCallback.onWriteFailed(node, result);
+                        }
+                    }
+                });
+            }
+        }
+    }
+}
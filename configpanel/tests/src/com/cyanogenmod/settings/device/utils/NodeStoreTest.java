@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.settings.device.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.os.FileUtils;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Runs NodeStore against a fake node tree in the cache directory.
+ */
+@RunWith(AndroidJUnit4.class)
+public class NodeStoreTest {
+
+    private static final String NODE = "/proc/fake/enable";
+    private static final String OTHER_NODE = "/proc/fake/other";
+    private static final String MISSING_NODE = "/proc/fake/missing";
+
+    private File mRoot;
+    private NodeStore mStore;
+
+    @Before
+    public void setUp() throws IOException {
+        mRoot = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "nodes");
+        FileUtils.deleteContents(mRoot);
+        createNode(NODE, "0");
+        createNode(OTHER_NODE, "0");
+        mStore = new NodeStore(mRoot);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteContents(mRoot);
+        mRoot.delete();
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        assertEquals(NodeStore.Result.WRITTEN, mStore.write(NODE, "1"));
+        assertEquals("1", readNode(NODE));
+        assertEquals("1", mStore.read(NODE));
+    }
+
+    @Test
+    public void testRepeatedWriteIsSkipped() throws IOException {
+        assertEquals(NodeStore.Result.WRITTEN, mStore.write(NODE, true));
+        // Changed behind the store's back, e.g. by a driver reset
+        writeNode(NODE, "0");
+        assertEquals(NodeStore.Result.UNCHANGED, mStore.write(NODE, true));
+        assertEquals("0", readNode(NODE));
+    }
+
+    @Test
+    public void testInvalidateForcesWrite() throws IOException {
+        mStore.write(NODE, "1");
+        writeNode(NODE, "0");
+        mStore.invalidate(NODE);
+        assertEquals(NodeStore.Result.WRITTEN, mStore.write(NODE, "1"));
+        assertEquals("1", readNode(NODE));
+    }
+
+    @Test
+    public void testInvalidateAllForcesWrites() throws IOException {
+        mStore.write(NODE, "1");
+        mStore.write(OTHER_NODE, "1");
+        writeNode(NODE, "0");
+        writeNode(OTHER_NODE, "0");
+        mStore.invalidateAll();
+        assertEquals(NodeStore.Result.WRITTEN, mStore.write(NODE, "1"));
+        assertEquals(NodeStore.Result.WRITTEN, mStore.write(OTHER_NODE, "1"));
+    }
+
+    @Test
+    public void testReadRefreshesRememberedValue() throws IOException {
+        mStore.write(NODE, "1");
+        writeNode(NODE, "0");
+        assertEquals("0", mStore.read(NODE));
+        assertEquals(NodeStore.Result.WRITTEN, mStore.write(NODE, "1"));
+    }
+
+    @Test
+    public void testMissingNode() {
+        assertFalse(mStore.exists(MISSING_NODE));
+        assertNull(mStore.read(MISSING_NODE));
+        assertEquals(NodeStore.Result.MISSING, mStore.write(MISSING_NODE, "1"));
+    }
+
+    @Test
+    public void testLateNodeIsFound() throws IOException {
+        assertFalse(mStore.exists(MISSING_NODE));
+        // The driver loaded after all
+        createNode(MISSING_NODE, "0");
+        assertTrue(mStore.exists(MISSING_NODE));
+        assertEquals(NodeStore.Result.WRITTEN, mStore.write(MISSING_NODE, "1"));
+    }
+
+    @Test
+    public void testBatchRetries() {
+        NodeStore.Batch batch = mStore.batch()
+                .put(NODE, "1")
+                .put(MISSING_NODE, "1");
+        Map<String, NodeStore.Result> results = batch.commit();
+        assertEquals(NodeStore.Result.WRITTEN, results.get(NODE));
+        assertEquals(NodeStore.Result.MISSING, results.get(MISSING_NODE));
+
+        assertEquals(0, batch.getRetries(false).size());
+        NodeStore.Batch retries = batch.getRetries(true);
+        assertEquals(1, retries.size());
+        assertEquals(NodeStore.Result.MISSING, retries.commit().get(MISSING_NODE));
+    }
+
+    @Test
+    public void testSetInstance() {
+        NodeStore original = NodeStore.getInstance();
+        try {
+            NodeStore.setInstance(mStore);
+            assertSame(mStore, NodeStore.getInstance());
+        } finally {
+            NodeStore.setInstance(original);
+        }
+    }
+
+    private void createNode(String path, String value) throws IOException {
+        File file = new File(mRoot, path);
+        file.getParentFile().mkdirs();
+        writeNode(path, value);
+    }
+
+    private void writeNode(String path, String value) throws IOException {
+        FileUtils.stringToFile(new File(mRoot, path).getPath(), value + "\n");
+    }
+
+    private String readNode(String path) throws IOException {
+        return FileUtils.readTextFile(new File(mRoot, path), 0, null).trim();
+    }
+}
@@ -9,3 +9,5 @@ LOCAL_DEX_PREOPT := false
 LOCAL_STATIC_JAVA_LIBRARIES := org.cyanogenmod.platform.internal
 include $(BUILD_JAVA_LIBRARY)
 
+
+include $(call all-makefiles-under,$(LOCAL_PATH))
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.settings.device;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Binary ring recorder for the key events reaching the key handler.
+ *
+ * Records live in a memory-mapped file, so recording is a handful of stores
+ * into the page cache, survives a system_server crash and can be pulled off
+ * a device for analysis. The file starts with a header:
+ *
+ * <pre>
+ *   0  int   magic "KHER"
+ *   4  int   format version
+ *   8  int   record size
+ *  12  int   capacity in records
+ *  16  long  number of records ever written
+ *  24  long  reserved
+ * </pre>
+ *
+ * followed by capacity fixed-size records, record n living in slot
+ * n % capacity:
+ *
+ * <pre>
+ *   0  long  event time (ns, uptime base)
+ *   8  int   scancode
+ *  12  byte  key action
+ *  13  byte  outcome, see OUTCOME_*
+ *  14  byte  proximity gate result, see ProximityGate.RESULT_*
+ *  15  byte  flags, see FLAG_*
+ *  16  int   settings generation
+ *  20  int   gesture queue depth
+ * </pre>
+ */
+final class EventRecorder {
+
+    private static final String TAG = EventRecorder.class.getSimpleName();
+
+    private static final int MAGIC = 0x4b484552; // "KHER"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int RECORD_SIZE = 24;
+    private static final int WRITE_COUNT_OFFSET = 16;
+
+    // What the key handler did with the event
+    static final int OUTCOME_UNHANDLED = 0;
+    static final int OUTCOME_SETUP_INCOMPLETE = 1;
+    static final int OUTCOME_FILTERED = 2;
+    static final int OUTCOME_POCKETED = 3;
+    static final int OUTCOME_SLIDER = 4;
+    static final int OUTCOME_QUEUED = 5;
+    static final int OUTCOME_COALESCED = 6;
+    static final int OUTCOME_RATE_LIMITED = 7;
+    static final int OUTCOME_DROPPED = 8;
+    private static final String[] OUTCOME_NAMES = {
+        "unhandled", "setup-incomplete", "filtered", "pocketed", "slider",
+        "queued", "coalesced", "rate-limited", "dropped"
+    };
+
+    // Snapshot of the state the event was classified against
+    static final int FLAG_SETUP_COMPLETED = 1 << 0;
+    static final int FLAG_PROXIMITY_CHECK = 1 << 1;
+    static final int FLAG_HAPTIC_FEEDBACK = 1 << 2;
+    static final int FLAG_POCKETED = 1 << 3;
+    static final int FLAG_INJECTED = 1 << 4;
+
+    /** One decoded record. */
+    static final class Record {
+        long mEventTimeNanos;
+        int mScanCode;
+        int mAction;
+        int mOutcome;
+        int mProximity;
+        int mFlags;
+        int mSettingsGeneration;
+        int mQueueDepth;
+
+        @Override
+        public String toString() {
+            return mEventTimeNanos / 1000L + "us scancode=" + mScanCode
+                    + " action=" + mAction
+                    + " outcome=" + (mOutcome < OUTCOME_NAMES.length
+                            ? OUTCOME_NAMES[mOutcome] : String.valueOf(mOutcome))
+                    + " proximity=" + mProximity
+                    + " flags=0x" + Integer.toHexString(mFlags)
+                    + " settings=" + mSettingsGeneration + " queue=" + mQueueDepth;
+        }
+    }
+
+    private final File mFile;
+    private final int mCapacity;
+    // Published once mapped, the recorder takes no locks
+    private volatile MappedByteBuffer mBuffer;
+    // Slots handed out to writers, and records completely written. Both only
+    // differ while a record is being written.
+    private final AtomicLong mReserved = new AtomicLong();
+    private final AtomicLong mWriteCount = new AtomicLong();
+
+    EventRecorder(File file, int capacity) {
+        mFile = file;
+        mCapacity = capacity;
+    }
+
+    /**
+     * Maps the ring file, continuing an existing recording if its layout
+     * matches. Does file I/O, so it must not be called on the input path.
+     * Must only be called from one thread.
+     */
+    void open() {
+        if (mBuffer != null) {
+            return;
+        }
+        final int size = HEADER_SIZE + mCapacity * RECORD_SIZE;
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            file.setLength(size);
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = file.getChannel().map(
+                    FileChannel.MapMode.READ_WRITE, 0, size);
+            long writeCount = 0;
+            if (buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION
+                    && buffer.getInt(8) == RECORD_SIZE && buffer.getInt(12) == mCapacity) {
+                writeCount = buffer.getLong(WRITE_COUNT_OFFSET);
+            } else {
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+                buffer.putInt(8, RECORD_SIZE);
+                buffer.putInt(12, mCapacity);
+                buffer.putLong(WRITE_COUNT_OFFSET, 0);
+            }
+            mReserved.set(writeCount);
+            mWriteCount.set(writeCount);
+            // Fault the file in now rather than on the input path
+            buffer.load();
+            mBuffer = buffer;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to map " + mFile, e);
+        }
+    }
+
+    /**
+     * Appends a record; does nothing until the recorder has been opened.
+     * Does not lock, allocate or make system calls, but the stores go to the
+     * page cache and can fault, and then block on storage, if the kernel
+     * evicted the page they hit since {@link #open()} loaded the file.
+     *
+     * The input thread is meant to be the only writer. A second one, i.e. a
+     * debug replay, gets its own slot, but a reader may then see a slot
+     * before its writer is done with it.
+     */
+    void record(long eventTimeNanos, int scanCode, int action, int outcome,
+            int proximity, int flags, int settingsGeneration, int queueDepth) {
+        final MappedByteBuffer buffer = mBuffer;
+        if (buffer == null) {
+            return;
+        }
+        final long index = mReserved.getAndIncrement();
+        final int offset = HEADER_SIZE + (int) (index % mCapacity) * RECORD_SIZE;
+        buffer.putLong(offset, eventTimeNanos);
+        buffer.putInt(offset + 8, scanCode);
+        buffer.put(offset + 12, (byte) action);
+        buffer.put(offset + 13, (byte) outcome);
+        buffer.put(offset + 14, (byte) proximity);
+        buffer.put(offset + 15, (byte) flags);
+        buffer.putInt(offset + 16, settingsGeneration);
+        buffer.putInt(offset + 20, queueDepth);
+        // Published last, so a reader never sees a torn record
+        long written = mWriteCount.get();
+        while (written < index + 1 && !mWriteCount.compareAndSet(written, index + 1)) {
+            written = mWriteCount.get();
+        }
+        buffer.putLong(WRITE_COUNT_OFFSET, mWriteCount.get());
+    }
+
+    /**
+     * Returns the recorded events, oldest first. Records overwritten while
+     * they were being copied are left out.
+     */
+    Record[] getRecords() {
+        final MappedByteBuffer buffer = mBuffer;
+        if (buffer == null) {
+            return new Record[0];
+        }
+        final long writeCount = mWriteCount.get();
+        final int count = (int) Math.min(writeCount, mCapacity);
+        Record[] records = new Record[count];
+        for (int i = 0; i < count; i++) {
+            final long index = writeCount - count + i;
+            final int offset = HEADER_SIZE + (int) (index % mCapacity) * RECORD_SIZE;
+            Record record = new Record();
+            record.mEventTimeNanos = buffer.getLong(offset);
+            record.mScanCode = buffer.getInt(offset + 8);
+            record.mAction = buffer.get(offset + 12);
+            record.mOutcome = buffer.get(offset + 13);
+            record.mProximity = buffer.get(offset + 14);
+            record.mFlags = buffer.get(offset + 15) & 0xff;
+            record.mSettingsGeneration = buffer.getInt(offset + 16);
+            record.mQueueDepth = buffer.getInt(offset + 20);
+            records[i] = record;
+        }
+
+        // Slots reserved meanwhile may have been reused while we read them
+        final long overwritten = mReserved.get() - mCapacity - (writeCount - count);
+        if (overwritten <= 0) {
+            return records;
+        }
+        return overwritten >= count ? new Record[0]
+                : Arrays.copyOfRange(records, (int) overwritten, count);
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + "file=" + mFile + " mapped=" + (mBuffer != null)
+                + " capacity=" + mCapacity + " written=" + mWriteCount.get());
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.settings.device;
+
+/**
+ * An action bound to a gesture scancode or notification slider position.
+ */
+abstract class GestureAction {
+
+    private final String mName;
+
+    GestureAction(String name) {
+        mName = name;
+    }
+
+    /**
+     * Gets the action ready to run while the gesture waits for its proximity
+     * check, e.g. by looking up what it is going to talk to. Must not have
+     * any effect visible to the user, as the gesture may still be rejected.
+     */
+    void prepare() {
+    }
+
+    /**
+     * Executes the action.
+     *
+     * @return true if the action did something the user should get feedback for
+     */
+    abstract boolean perform();
+
+    /**
+     * Called instead of {@link #perform()} when a prepared gesture is rejected.
+     */
+    void abort() {
+    }
+
+    /**
+     * Whether running the action could currently have any effect. The touch
+     * controller does not need to look for gestures whose actions could not.
+     *
+     * @param mediaSessionActive whether any media session is active
+     */
+    boolean isUseful(boolean mediaSessionActive) {
+        return true;
+    }
+
+    /**
+     * Whether a new gesture for this action may be merged into one that is
+     * still pending, e.g. because running the action twice in a row is
+     * pointless or would cancel itself out.
+     */
+    boolean coalesces() {
+        return false;
+    }
+
+    /**
+     * Minimum time between two accepted gestures for this action, or 0 for
+     * no limit.
+     */
+    long getMinIntervalNanos() {
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+}
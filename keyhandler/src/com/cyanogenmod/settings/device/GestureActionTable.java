@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.settings.device;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+/**
+ * Dense, scancode-indexed table of gesture actions.
+ *
+ * The table is built from a compact configuration string of the form
+ * {@code <scancode>=<action>[:<argument>],...}, e.g.
+ * {@code 250=camera,252=torch,253=media:88}. Later entries override
+ * earlier ones, so user configuration can simply be appended to the
+ * defaults. Entries whose argument is missing, empty or not expected by the
+ * action are ignored, so factories always get an argument when the action
+ * takes one. Tables are immutable once built.
+ */
+final class GestureActionTable {
+
+    private static final String TAG = GestureActionTable.class.getSimpleName();
+
+    // Action names used in the configuration string
+    static final String ACTION_NONE = "none";
+    static final String ACTION_CAMERA = "camera";
+    static final String ACTION_TORCH = "torch";
+    static final String ACTION_MEDIA = "media";
+    static final String ACTION_ZEN = "zen";
+    static final String ACTION_RINGER = "ringer";
+    static final String ACTION_LAUNCH = "launch";
+    static final String ACTION_KEY = "key";
+
+    // Scancodes the touch controller reports gestures with
+    static final int MIN_GESTURE_SCANCODE = 249;
+    static final int MAX_GESTURE_SCANCODE = 254;
+    // Scancodes the notification slider positions can be configured to report
+    static final int MIN_SLIDER_SCANCODE = 600;
+    static final int MAX_SLIDER_SCANCODE = 603;
+
+    // Range of scancodes the table covers
+    static final int MIN_SCANCODE = MIN_GESTURE_SCANCODE;
+    static final int MAX_SCANCODE = MAX_SLIDER_SCANCODE;
+
+    interface ActionFactory {
+        /**
+         * Creates the action for the given name and argument, or returns null
+         * if the combination is not supported.
+         */
+        GestureAction createAction(String name, String argument);
+    }
+
+    private final GestureAction[] mActions =
+            new GestureAction[MAX_SCANCODE - MIN_SCANCODE + 1];
+
+    private GestureActionTable() {
+    }
+
+    /**
+     * Returns the action bound to the scancode, or null if the scancode
+     * is not handled.
+     */
+    GestureAction get(int scanCode) {
+        final int index = scanCode - MIN_SCANCODE;
+        if (index < 0 || index >= mActions.length) {
+            return null;
+        }
+        return mActions[index];
+    }
+
+    /**
+     * Whether the scancode is one of the gestures or slider positions,
+     * rather than just somewhere in between.
+     */
+    static boolean isSupportedScanCode(int scanCode) {
+        return (scanCode >= MIN_GESTURE_SCANCODE && scanCode <= MAX_GESTURE_SCANCODE)
+                || (scanCode >= MIN_SLIDER_SCANCODE && scanCode <= MAX_SLIDER_SCANCODE);
+    }
+
+    /**
+     * Whether the action needs an argument, e.g. the key it sends.
+     */
+    static boolean takesArgument(String name) {
+        switch (name) {
+        case ACTION_MEDIA:
+        case ACTION_ZEN:
+        case ACTION_RINGER:
+        case ACTION_LAUNCH:
+        case ACTION_KEY:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    static GestureActionTable parse(ActionFactory factory, String... configs) {
+        GestureActionTable table = new GestureActionTable();
+        for (String config : configs) {
+            if (TextUtils.isEmpty(config)) {
+                continue;
+            }
+            for (String entry : config.split(",")) {
+                table.parseEntry(factory, entry.trim());
+            }
+        }
+        return table;
+    }
+
+    private void parseEntry(ActionFactory factory, String entry) {
+        final int equals = entry.indexOf('=');
+        if (equals <= 0) {
+            Log.w(TAG, "Ignoring malformed gesture action entry '" + entry + "'");
+            return;
+        }
+
+        final int scanCode;
+        try {
+            scanCode = Integer.parseInt(entry.substring(0, equals));
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Ignoring gesture action entry with invalid scancode '" + entry + "'");
+            return;
+        }
+        if (!isSupportedScanCode(scanCode)) {
+            Log.w(TAG, "Ignoring gesture action entry for unsupported scancode " + scanCode);
+            return;
+        }
+
+        final String action = entry.substring(equals + 1);
+        final int colon = action.indexOf(':');
+        final String name = colon < 0 ? action : action.substring(0, colon);
+        final String argument = colon < 0 ? null : action.substring(colon + 1);
+        if (takesArgument(name) ? TextUtils.isEmpty(argument) : argument != null) {
+            Log.w(TAG, "Ignoring action '" + action + "' with missing or extra argument "
+                    + "for scancode " + scanCode);
+            return;
+        }
+
+        GestureAction gestureAction = factory.createAction(name, argument);
+        if (gestureAction == null) {
+            Log.w(TAG, "Ignoring unsupported action '" + action + "' for scancode " + scanCode);
+            return;
+        }
+        mActions[scanCode - MIN_SCANCODE] = gestureAction;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.settings.device;
+
+import java.io.PrintWriter;
+
+/**
+ * Per-scancode, per-stage latency histograms for gesture handling.
+ *
+ * All histograms are allocated up front for the scancodes passed to the
+ * constructor; recording for any other scancode is ignored.
+ */
+final class GestureLatencyStats {
+
+    // Kernel event time to the handler starting to work on the gesture
+    static final int STAGE_DISPATCH = 0;
+    // Time spent waiting for a proximity reading
+    static final int STAGE_PROXIMITY = 1;
+    // Time spent executing the action itself
+    static final int STAGE_ACTION = 2;
+    // Kernel event time to action completion
+    static final int STAGE_TOTAL = 3;
+    // Time the gesture kept the gesture wakelock held
+    static final int STAGE_WAKELOCK = 4;
+    // Time spent preparing the action while waiting for a proximity reading
+    static final int STAGE_PREPARE = 5;
+    static final int STAGE_COUNT = 6;
+
+    private static final String[] STAGE_NAMES = {
+        "dispatch", "proximity", "action", "total", "wakelock", "prepare"
+    };
+
+    private final int[] mScanCodes;
+    private final int[] mSlots;
+    private final LatencyHistogram[][] mHistograms;
+
+    GestureLatencyStats(int... scanCodes) {
+        mScanCodes = scanCodes;
+        mSlots = new int[GestureActionTable.MAX_SCANCODE - GestureActionTable.MIN_SCANCODE + 1];
+        mHistograms = new LatencyHistogram[scanCodes.length][STAGE_COUNT];
+        for (int i = 0; i < scanCodes.length; i++) {
+            mSlots[scanCodes[i] - GestureActionTable.MIN_SCANCODE] = i + 1;
+            for (int stage = 0; stage < STAGE_COUNT; stage++) {
+                mHistograms[i][stage] = new LatencyHistogram();
+            }
+        }
+    }
+
+    void recordNanos(int scanCode, int stage, long nanos) {
+        final int index = scanCode - GestureActionTable.MIN_SCANCODE;
+        if (index < 0 || index >= mSlots.length || mSlots[index] == 0) {
+            return;
+        }
+        mHistograms[mSlots[index] - 1][stage].recordNanos(nanos);
+    }
+
+    void reset() {
+        for (LatencyHistogram[] stages : mHistograms) {
+            for (LatencyHistogram histogram : stages) {
+                histogram.reset();
+            }
+        }
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        for (int i = 0; i < mScanCodes.length; i++) {
+            if (mHistograms[i][STAGE_TOTAL].getCount() == 0
+                    && mHistograms[i][STAGE_WAKELOCK].getCount() == 0) {
+                continue;
+            }
+            pw.println(prefix + "scancode " + mScanCodes[i] + ":");
+            for (int stage = 0; stage < STAGE_COUNT; stage++) {
+                if (mHistograms[i][stage].getCount() == 0) {
+                    continue;
+                }
+                pw.print(prefix + "  " + STAGE_NAMES[stage] + ": ");
+                mHistograms[i][stage].dump(pw);
+                pw.println();
+            }
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.settings.device;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.cyanogenmod.internal.util.FileUtils;
+
+import java.io.PrintWriter;
+
+/**
+ * Decides which touchpanel gesture nodes need to be enabled.
+ *
+ * The nodes the user enabled in ConfigPanel are an upper bound. Within that,
+ * a node is switched off while the device is pocketed, or while none of its
+ * gestures is bound to an action that could do anything, e.g. when all of
+ * them are media keys and no media session is active. A node whose gestures
+ * were used recently stays on regardless, so that e.g. skipping tracks keeps
+ * working right after the player stopped.
+ *
+ * The policy is the only writer of the nodes; ConfigPanel publishes the
+ * user's choice and leaves the nodes alone. The touch controller only looks
+ * for gestures while the screen is off, so decisions are only applied then.
+ * Enabling a node happens right away; disabling it is rate limited so that a
+ * node does not flap. Every flip is logged and kept in a short history for
+ * the dump.
+ *
+ * All methods must be called on the policy's handler.
+ */
+final class GestureNodePolicy {
+
+    private static final String TAG = GestureNodePolicy.class.getSimpleName();
+
+    // Minimum time between a node's last flip and switching it off again
+    private static final long DISABLE_MIN_INTERVAL_MS = 30 * 1000;
+    // Gestures used this recently keep their node enabled
+    private static final long RECENT_USE_MS = 10 * 60 * 1000;
+    private static final int HISTORY_SIZE = 16;
+
+    private static final class Node {
+        final String mPath;
+        final int[] mScanCodes;
+        boolean mAllowed;
+        long mLastFlipMs;
+        long mLastUsedMs;
+        long mFlips;
+
+        Node(String path, int... scanCodes) {
+            mPath = path;
+            mScanCodes = scanCodes;
+        }
+    }
+
+    private final Node[] mNodes;
+    private final Handler mHandler;
+
+    // Null until ConfigPanel published the user's choice; nodes are left alone until then
+    private String mAllowedNodes;
+    private GestureActionTable mActionTable;
+    private boolean mScreenOn = true;
+    private boolean mPocketed;
+    private boolean mMediaSessionActive = true;
+
+    private final String[] mHistory = new String[HISTORY_SIZE];
+    private int mHistoryIndex;
+
+    GestureNodePolicy(Handler handler, int circleScanCode, int swipeDownScanCode,
+            int vScanCode, int ltrScanCode, int gtrScanCode) {
+        mHandler = handler;
+        mNodes = new Node[] {
+            new Node("/proc/touchpanel/camera_enable", circleScanCode),
+            new Node("/proc/touchpanel/music_enable",
+                    swipeDownScanCode, ltrScanCode, gtrScanCode),
+            new Node("/proc/touchpanel/flashlight_enable", vScanCode)
+        };
+    }
+
+    /**
+     * @param allowedNodes comma separated node paths the user enabled, or null
+     *                     if not published yet
+     */
+    void setConfig(String allowedNodes, GestureActionTable actionTable) {
+        mAllowedNodes = allowedNodes;
+        mActionTable = actionTable;
+        final String[] allowed = allowedNodes != null
+                ? TextUtils.split(allowedNodes, ",") : new String[0];
+        for (Node node : mNodes) {
+            node.mAllowed = false;
+            for (String path : allowed) {
+                if (node.mPath.equals(path)) {
+                    node.mAllowed = true;
+                    break;
+                }
+            }
+        }
+        evaluate();
+    }
+
+    void setScreenOn(boolean screenOn) {
+        mScreenOn = screenOn;
+        evaluate();
+    }
+
+    void setPocketed(boolean pocketed) {
+        mPocketed = pocketed;
+        evaluate();
+    }
+
+    void setMediaSessionActive(boolean active) {
+        mMediaSessionActive = active;
+        evaluate();
+    }
+
+    /**
+     * Records that a gesture was performed.
+     */
+    void onGesture(int scanCode) {
+        for (Node node : mNodes) {
+            for (int nodeScanCode : node.mScanCodes) {
+                if (nodeScanCode == scanCode) {
+                    node.mLastUsedMs = SystemClock.uptimeMillis();
+                    return;
+                }
+            }
+        }
+    }
+
+    private final Runnable mEvaluateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            evaluate();
+        }
+    };
+
+    private void evaluate() {
+        mHandler.removeCallbacks(mEvaluateRunnable);
+        if (mScreenOn || mAllowedNodes == null) {
+            return;
+        }
+        final long now = SystemClock.uptimeMillis();
+        for (Node node : mNodes) {
+            if (!node.mAllowed) {
+                apply(node, false, "disabled by user", now);
+            } else if (mPocketed) {
+                apply(node, false, "pocketed", now);
+            } else if (node.mLastUsedMs != 0 && now - node.mLastUsedMs < RECENT_USE_MS) {
+                apply(node, true, "recently used", now);
+            } else if (!hasUsefulAction(node)) {
+                apply(node, false, mMediaSessionActive
+                        ? "no usable action" : "no media session", now);
+            } else {
+                apply(node, true, "usable", now);
+            }
+        }
+    }
+
+    private boolean hasUsefulAction(Node node) {
+        for (int scanCode : node.mScanCodes) {
+            GestureAction action = mActionTable.get(scanCode);
+            if (action != null && action.isUseful(mMediaSessionActive)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void apply(Node node, boolean enable, String reason, long now) {
+        final String current = FileUtils.readOneLine(node.mPath);
+        if (current == null) {
+            // Not supported by this touch controller
+            return;
+        }
+        if ("1".equals(current) == enable) {
+            return;
+        }
+        if (!enable && node.mLastFlipMs != 0) {
+            final long wait = node.mLastFlipMs + DISABLE_MIN_INTERVAL_MS - now;
+            if (wait > 0) {
+                mHandler.postDelayed(mEvaluateRunnable, wait);
+                return;
+            }
+        }
+        if (!FileUtils.writeLine(node.mPath, enable ? "1" : "0")) {
+            Log.w(TAG, "Unable to write " + node.mPath);
+            return;
+        }
+        node.mLastFlipMs = now;
+        node.mFlips++;
+
+        final String decision = node.mPath + (enable ? " on: " : " off: ") + reason;
+        Log.i(TAG, decision);
+        mHistory[mHistoryIndex] = now + " " + decision;
+        mHistoryIndex = (mHistoryIndex + 1) % HISTORY_SIZE;
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + "screenOn=" + mScreenOn + " pocketed=" + mPocketed
+                + " mediaSessionActive=" + mMediaSessionActive
+                + " published=" + (mAllowedNodes != null));
+        final long now = SystemClock.uptimeMillis();
+        for (Node node : mNodes) {
+            pw.println(prefix + node.mPath + ": allowed=" + node.mAllowed
+                    + " flips=" + node.mFlips
+                    + " lastUsed=" + (node.mLastUsedMs != 0
+                            ? (now - node.mLastUsedMs) / 1000 + "s ago" : "never"));
+        }
+        for (int i = 0; i < HISTORY_SIZE; i++) {
+            String entry = mHistory[(mHistoryIndex + i) % HISTORY_SIZE];
+            if (entry != null) {
+                pw.println(prefix + "  " + entry);
+            }
+        }
+    }
+}
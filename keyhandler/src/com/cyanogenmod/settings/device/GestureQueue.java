@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.settings.device;
+
+import java.io.PrintWriter;
+
+/**
+ * Small bounded FIFO between the input thread and the gesture handler.
+ *
+ * Gestures whose action coalesces are collapsed into an already pending
+ * entry for the same scancode, gestures arriving faster than their action's
+ * minimum interval are rate limited, and gestures arriving while the queue
+ * is full are dropped. Every outcome is counted. Entries are preallocated,
+ * so the queue never allocates.
+ */
+final class GestureQueue {
+
+    static final int RESULT_QUEUED = 0;
+    static final int RESULT_COALESCED = 1;
+    static final int RESULT_RATE_LIMITED = 2;
+    static final int RESULT_DROPPED = 3;
+
+    static final class Entry {
+        GestureAction mAction;
+        int mScanCode;
+        long mEventTimeNanos;
+        long mQueuedNanos;
+        long mProximityStartNanos;
+
+        void set(Entry other) {
+            mAction = other.mAction;
+            mScanCode = other.mScanCode;
+            mEventTimeNanos = other.mEventTimeNanos;
+            mQueuedNanos = other.mQueuedNanos;
+            mProximityStartNanos = other.mProximityStartNanos;
+        }
+
+        void clear() {
+            mAction = null;
+        }
+    }
+
+    private final Entry[] mEntries;
+    private final long[] mLastAcceptedNanos =
+            new long[GestureActionTable.MAX_SCANCODE - GestureActionTable.MIN_SCANCODE + 1];
+    private int mHead;
+    // Only written with the lock held, but read without it by size()
+    private volatile int mSize;
+    private int mMaxSize;
+
+    private long mQueued;
+    private long mCoalesced;
+    private long mRateLimited;
+    private long mDropped;
+    private long mRemoved;
+
+    GestureQueue(int capacity) {
+        mEntries = new Entry[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mEntries[i] = new Entry();
+        }
+    }
+
+    synchronized int offer(GestureAction action, int scanCode, long eventTimeNanos) {
+        final int index = scanCode - GestureActionTable.MIN_SCANCODE;
+        final long minInterval = action.getMinIntervalNanos();
+        if (minInterval > 0 && mLastAcceptedNanos[index] != 0
+                && eventTimeNanos - mLastAcceptedNanos[index] < minInterval) {
+            mRateLimited++;
+            return RESULT_RATE_LIMITED;
+        }
+
+        if (action.coalesces()) {
+            for (int i = 0; i < mSize; i++) {
+                Entry entry = mEntries[(mHead + i) % mEntries.length];
+                if (entry.mScanCode == scanCode) {
+                    mCoalesced++;
+                    return RESULT_COALESCED;
+                }
+            }
+        }
+
+        if (mSize == mEntries.length) {
+            mDropped++;
+            return RESULT_DROPPED;
+        }
+
+        Entry entry = mEntries[(mHead + mSize) % mEntries.length];
+        entry.mAction = action;
+        entry.mScanCode = scanCode;
+        entry.mEventTimeNanos = eventTimeNanos;
+        entry.mQueuedNanos = System.nanoTime();
+        entry.mProximityStartNanos = 0;
+        mSize++;
+        mMaxSize = Math.max(mMaxSize, mSize);
+        mLastAcceptedNanos[index] = eventTimeNanos;
+        mQueued++;
+        return RESULT_QUEUED;
+    }
+
+    /**
+     * Copies the oldest entry into out, leaving it queued so that new
+     * gestures can still coalesce into it while it is being processed.
+     *
+     * @return false if the queue was empty
+     */
+    synchronized boolean peek(Entry out) {
+        if (mSize == 0) {
+            return false;
+        }
+        out.set(mEntries[mHead]);
+        return true;
+    }
+
+    /**
+     * Removes the oldest entry.
+     */
+    synchronized void remove() {
+        if (mSize == 0) {
+            return;
+        }
+        mEntries[mHead].clear();
+        mHead = (mHead + 1) % mEntries.length;
+        mSize--;
+        mRemoved++;
+    }
+
+    /**
+     * Returns the number of queued gestures without taking the lock, so it
+     * may be stale by the time it returns.
+     */
+    int size() {
+        return mSize;
+    }
+
+    synchronized void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + "size=" + mSize + " maxSize=" + mMaxSize
+                + " capacity=" + mEntries.length);
+        pw.println(prefix + "queued=" + mQueued + " removed=" + mRemoved
+                + " coalesced=" + mCoalesced + " rateLimited=" + mRateLimited
+                + " dropped=" + mDropped);
+    }
+}
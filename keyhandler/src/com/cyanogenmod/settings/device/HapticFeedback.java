@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.settings.device;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Vibrator;
+import android.util.ArrayMap;
+
+/**
+ * Vibration feedback for gestures and slider positions.
+ *
+ * Every action gets its own waveform, so the user can tell what a gesture
+ * did even after it was remapped. The runnables playing them are built
+ * once up front. Feedback is played on a separate looper, so the vibrator
+ * Binder call never delays the actions of further gestures.
+ */
+final class HapticFeedback {
+
+    // Played for actions without a dedicated waveform
+    private static final long[] DEFAULT_WAVEFORM = { 0, 50 };
+
+    private final Vibrator mVibrator;
+    private final Handler mHandler;
+    private final ArrayMap<String, Runnable> mFeedback = new ArrayMap<>();
+    private final Runnable mDefaultFeedback;
+
+    /**
+     * @param waveforms vibration patterns keyed by action, in the form used
+     *                  in the action configuration (e.g. "media:88"), and in
+     *                  the format taken by {@link Vibrator#vibrate(long[], int)}
+     */
+    HapticFeedback(Vibrator vibrator, Looper looper, ArrayMap<String, long[]> waveforms) {
+        mVibrator = vibrator;
+        mHandler = new Handler(looper);
+        mDefaultFeedback = new WaveformRunnable(DEFAULT_WAVEFORM);
+        for (int i = 0; i < waveforms.size(); i++) {
+            mFeedback.put(waveforms.keyAt(i), new WaveformRunnable(waveforms.valueAt(i)));
+        }
+    }
+
+    /**
+     * Queues the feedback for the action. Does nothing if the device has no
+     * vibrator or the user turned feedback off.
+     */
+    void perform(GestureAction action, boolean enabled) {
+        if (!enabled || mVibrator == null) {
+            return;
+        }
+        Runnable feedback = mFeedback.get(action.toString());
+        mHandler.post(feedback != null ? feedback : mDefaultFeedback);
+    }
+
+    private class WaveformRunnable implements Runnable {
+        private final long[] mWaveform;
+
+        WaveformRunnable(long[] waveform) {
+            mWaveform = waveform;
+        }
+
+        @Override
+        public void run() {
+            mVibrator.vibrate(mWaveform, -1);
+        }
+    }
+}
@@ -18,37 +18,103 @@ package com.cyanogenmod.settings.device;
 
 import android.Manifest;
 import android.app.NotificationManager;
+import android.content.ActivityNotFoundException;
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.res.Resources;
+import android.database.ContentObserver;
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraManager;
+import android.hardware.input.InputManager;
+import android.media.AudioManager;
+import android.media.session.MediaController;
 import android.media.session.MediaSessionLegacyHelper;
+import android.media.session.MediaSessionManager;
+import android.os.Binder;
+import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.Message;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
+import android.os.Process;
+import android.os.ResultReceiver;
+import android.os.ServiceManager;
+import android.os.ShellCommand;
 import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.os.Trace;
+import android.os.UserHandle;
 import android.os.Vibrator;
 import android.provider.Settings;
+import android.util.ArrayMap;
 import android.util.Log;
-import android.util.SparseIntArray;
+import android.view.InputDevice;
+import android.view.KeyCharacterMap;
 import android.view.KeyEvent;
 
 import com.android.internal.os.DeviceKeyHandler;
-import com.android.internal.util.ArrayUtils;
 
 import cyanogenmod.providers.CMSettings;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
 public class KeyHandler implements DeviceKeyHandler {
 
     private static final String TAG = KeyHandler.class.getSimpleName();
     private static final int GESTURE_REQUEST = 1;
+    private static final int REFRESH_SETTINGS = 2;
+    private static final int PROXIMITY_TIMEOUT = 3;
+    private static final int DISCOVER_CAMERA = 4;
+    private static final int SLIDER_SETTLE = 5;
+    private static final int OPEN_RECORDER = 6;
+    private static final String[] MESSAGE_NAMES = {
+        null, "GESTURE_REQUEST", "REFRESH_SETTINGS", "PROXIMITY_TIMEOUT", "DISCOVER_CAMERA",
+        "SLIDER_SETTLE", "OPEN_RECORDER"
+    };
+
+    // Priority of the handler thread, overridable for tuning
+    private static final String THREAD_PRIORITY_PROPERTY = "persist.sys.keyhandler.priority";
+
+    // Messages taking longer than this to handle are logged
+    private static final long SLOW_MESSAGE_NANOS = 100 * 1000000L;
+
+    // Trace sections and counters, see systrace/atrace "input" category
+    private static final long TRACE_TAG = Trace.TRACE_TAG_INPUT;
+    private static final String TRACE_CLASSIFY = "KeyHandler:classify";
+    private static final String TRACE_DISPATCH = "KeyHandler:dispatch";
+    private static final String TRACE_PREPARE = "KeyHandler:prepare";
+    private static final String TRACE_PROXIMITY = "KeyHandler:proximity";
+    private static final String TRACE_SLIDER = "KeyHandler:slider";
+    private static final String TRACE_SLIDER_SYNC = "KeyHandler:sliderSync";
+    private static final String TRACE_QUEUE_DEPTH = "KeyHandler:queue";
+
+    // Ring file recording the key events we handled, see EventRecorder. Only
+    // recorded by default on debuggable builds.
+    private static final String RECORDER_PROPERTY = "persist.sys.keyhandler.record";
+    private static final String RECORDER_FILE = "/data/system/keyhandler_events.bin";
+    private static final int RECORDER_CAPACITY = 4096;
+
+    // Longest pause between two replayed events, so old recordings replay quickly
+    private static final long REPLAY_MAX_GAP_MS = 5000;
+
+    // Name of the binder service used to dump the key handler state
+    private static final String DUMP_SERVICE_NAME = "device_keyhandler";
+    // How long a dump waits for the handler thread
+    private static final long DUMP_TIMEOUT_MS = 1000;
 
     // Supported scancodes
     private static final int FLIP_CAMERA_SCANCODE = 249;
@@ -57,43 +123,143 @@ public class KeyHandler implements DeviceKeyHandler {
     private static final int GESTURE_V_SCANCODE = 252;
     private static final int GESTURE_LTR_SCANCODE = 253;
     private static final int GESTURE_GTR_SCANCODE = 254;
+    // Slider scancodes. ConfigPanel has the positions report 601 to 603 from
+    // top to bottom and binds each position's action to its scancode; the
+    // defaults below are the zen modes older configurations stood for.
     private static final int MODE_TOTAL_SILENCE = 600;
     private static final int MODE_ALARMS_ONLY = 601;
     private static final int MODE_PRIORITY_ONLY = 602;
     private static final int MODE_NONE = 603;
 
-    private static final int GESTURE_WAKELOCK_DURATION = 3000;
+    // Safety cap for the gesture wakelock, which is normally released as soon
+    // as all queued gestures have been handled
+    private static final int GESTURE_WAKELOCK_TIMEOUT = 3000;
+
+    // How long a proximity reading taken while the gate was disarmed stays valid
+    private static final int PROXIMITY_FRESHNESS_MS = 500;
+
+    // Whether the touchpanel gesture nodes are switched off while pocketed
+    private static final String POCKET_NODES_PROPERTY = "persist.sys.keyhandler.pocket_nodes";
+
+    // Number of gestures that may wait for execution
+    private static final int GESTURE_QUEUE_CAPACITY = 8;
 
-    private static final int[] sSupportedGestures = new int[] {
-        FLIP_CAMERA_SCANCODE,
-        GESTURE_CIRCLE_SCANCODE,
-        GESTURE_SWIPE_DOWN_SCANCODE,
-        GESTURE_V_SCANCODE,
-        GESTURE_LTR_SCANCODE,
-        GESTURE_GTR_SCANCODE
+    // Minimum time between two accepted gestures for rate limited actions
+    private static final long CAMERA_MIN_INTERVAL_NANOS = 500 * 1000000L;
+    private static final long TOGGLE_MIN_INTERVAL_NANOS = 300 * 1000000L;
+
+    // How long the slider has to stay put before its position is acted upon,
+    // overridable for tuning
+    private static final String SLIDER_SETTLE_PROPERTY = "persist.sys.keyhandler.slider_settle";
+    private static final int SLIDER_SETTLE_MS = 100;
+
+    // Secure settings key holding the user's gesture action configuration,
+    // written by ConfigPanel. Apps may be able to write system settings, and
+    // the actions run as system.
+    private static final String GESTURE_ACTIONS_SETTING = "device_gesture_actions";
+    // Secure settings key holding the gesture nodes the user enabled, written by ConfigPanel
+    private static final String GESTURE_NODES_SETTING = "device_gesture_nodes";
+
+    // Receivers of the camera gesture broadcast must hold this
+    private static final String[] CAMERA_GESTURE_PERMISSIONS = {
+        Manifest.permission.STATUS_BAR_SERVICE
     };
 
-    private static final SparseIntArray sSupportedSliderModes = new SparseIntArray();
+    // Default bindings, overridden per scancode by the user's configuration
+    private static final String DEFAULT_GESTURE_ACTIONS =
+            FLIP_CAMERA_SCANCODE + "=" + GestureActionTable.ACTION_CAMERA + "," +
+            GESTURE_CIRCLE_SCANCODE + "=" + GestureActionTable.ACTION_CAMERA + "," +
+            GESTURE_SWIPE_DOWN_SCANCODE + "=" + GestureActionTable.ACTION_MEDIA + ":" +
+                    KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE + "," +
+            GESTURE_V_SCANCODE + "=" + GestureActionTable.ACTION_TORCH + "," +
+            GESTURE_LTR_SCANCODE + "=" + GestureActionTable.ACTION_MEDIA + ":" +
+                    KeyEvent.KEYCODE_MEDIA_PREVIOUS + "," +
+            GESTURE_GTR_SCANCODE + "=" + GestureActionTable.ACTION_MEDIA + ":" +
+                    KeyEvent.KEYCODE_MEDIA_NEXT + "," +
+            MODE_TOTAL_SILENCE + "=" + GestureActionTable.ACTION_ZEN + ":" +
+                    Settings.Global.ZEN_MODE_NO_INTERRUPTIONS + "," +
+            MODE_ALARMS_ONLY + "=" + GestureActionTable.ACTION_ZEN + ":" +
+                    Settings.Global.ZEN_MODE_ALARMS + "," +
+            MODE_PRIORITY_ONLY + "=" + GestureActionTable.ACTION_ZEN + ":" +
+                    Settings.Global.ZEN_MODE_IMPORTANT_INTERRUPTIONS + "," +
+            MODE_NONE + "=" + GestureActionTable.ACTION_ZEN + ":" +
+                    Settings.Global.ZEN_MODE_OFF;
+
+    // Vibration patterns (off/on durations in ms) telling actions apart, keyed by action
+    private static final ArrayMap<String, long[]> sHapticWaveforms = new ArrayMap<>();
     static {
-        sSupportedSliderModes.put(MODE_TOTAL_SILENCE, Settings.Global.ZEN_MODE_NO_INTERRUPTIONS);
-        sSupportedSliderModes.put(MODE_ALARMS_ONLY, Settings.Global.ZEN_MODE_ALARMS);
-        sSupportedSliderModes.put(MODE_PRIORITY_ONLY,
-                Settings.Global.ZEN_MODE_IMPORTANT_INTERRUPTIONS);
-        sSupportedSliderModes.put(MODE_NONE, Settings.Global.ZEN_MODE_OFF);
+        sHapticWaveforms.put(GestureActionTable.ACTION_CAMERA, new long[] { 0, 40 });
+        sHapticWaveforms.put(GestureActionTable.ACTION_TORCH, new long[] { 0, 60 });
+        sHapticWaveforms.put(GestureActionTable.ACTION_MEDIA + ":" +
+                KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE, new long[] { 0, 20, 60, 20 });
+        sHapticWaveforms.put(GestureActionTable.ACTION_MEDIA + ":" +
+                KeyEvent.KEYCODE_MEDIA_PREVIOUS, new long[] { 0, 15, 40, 35 });
+        sHapticWaveforms.put(GestureActionTable.ACTION_MEDIA + ":" +
+                KeyEvent.KEYCODE_MEDIA_NEXT, new long[] { 0, 35, 40, 15 });
+        sHapticWaveforms.put(GestureActionTable.ACTION_ZEN + ":" +
+                Settings.Global.ZEN_MODE_NO_INTERRUPTIONS, new long[] { 0, 20, 60, 20, 60, 20 });
+        sHapticWaveforms.put(GestureActionTable.ACTION_ZEN + ":" +
+                Settings.Global.ZEN_MODE_ALARMS, new long[] { 0, 20, 60, 20 });
+        sHapticWaveforms.put(GestureActionTable.ACTION_ZEN + ":" +
+                Settings.Global.ZEN_MODE_IMPORTANT_INTERRUPTIONS, new long[] { 0, 40 });
+        sHapticWaveforms.put(GestureActionTable.ACTION_ZEN + ":" +
+                Settings.Global.ZEN_MODE_OFF, new long[] { 0, 20 });
+        sHapticWaveforms.put(GestureActionTable.ACTION_RINGER + ":" +
+                AudioManager.RINGER_MODE_NORMAL, new long[] { 0, 20 });
+        sHapticWaveforms.put(GestureActionTable.ACTION_RINGER + ":" +
+                AudioManager.RINGER_MODE_VIBRATE, new long[] { 0, 80 });
     }
 
     private final Context mContext;
     private final PowerManager mPowerManager;
     private final NotificationManager mNotificationManager;
+    private final AudioManager mAudioManager;
+    private final HandlerThread mHandlerThread;
     private EventHandler mEventHandler;
+    private final LatencyHistogram[] mMessageStats = new LatencyHistogram[MESSAGE_NAMES.length];
+    private final AtomicLong mSlowMessages = new AtomicLong();
+    private final ActionFactory mActionFactory = new ActionFactory();
+    // Only used on the handler thread
+    private MediaSessionLegacyHelper mMediaSessionHelper;
+    private volatile SettingsSnapshot mSettings;
+    private final AtomicLong mSettingsHits = new AtomicLong();
+    private final AtomicLong mSettingsRefreshes = new AtomicLong();
+    private boolean mDefaultProximity;
     private SensorManager mSensorManager;
     private CameraManager mCameraManager;
+    // Only touched on the handler thread, which also receives the camera callbacks
     private String mRearCameraId;
     private boolean mTorchEnabled;
+    private boolean mTorchCallbackRegistered;
+    private long mCameraDiscoveryNanos;
     private Sensor mProximitySensor;
-    private Vibrator mVibrator;
+    private ProximityGate mProximityGate;
+    private PocketDetector mPocketDetector;
+    private final AtomicLong mPocketRejected = new AtomicLong();
+    private final GestureNodePolicy mNodePolicy;
+    private final EventRecorder mRecorder;
+    private final GestureQueue mGestureQueue = new GestureQueue(GESTURE_QUEUE_CAPACITY);
+    // The gesture being executed, only touched on the handler thread
+    private final GestureQueue.Entry mCurrentGesture = new GestureQueue.Entry();
+    private boolean mWaitingForProximity;
+    private long mProximityRejected;
+    private long mPreparedHits;
+    private long mPreparedAborts;
+    private final GestureLatencyStats mLatencyStats = new GestureLatencyStats(
+            FLIP_CAMERA_SCANCODE, GESTURE_CIRCLE_SCANCODE, GESTURE_SWIPE_DOWN_SCANCODE,
+            GESTURE_V_SCANCODE, GESTURE_LTR_SCANCODE, GESTURE_GTR_SCANCODE,
+            MODE_TOTAL_SILENCE, MODE_ALARMS_ONLY, MODE_PRIORITY_ONLY, MODE_NONE);
+    private final SliderState mSliderState = new SliderState();
+    // The slider position being committed, only touched on the handler thread
+    private final GestureQueue.Entry mSliderGesture = new GestureQueue.Entry();
+    private final int mSliderSettleMs;
+    private final HapticFeedback mHapticFeedback;
     WakeLock mProximityWakeLock;
     WakeLock mGestureWakeLock;
+    private final Object mGestureWakeLockLock = new Object();
+    private int mGestureWakeLockHolders;
+    private long mGestureWakeLockAcquiredNanos;
+    private long mGestureWakeLockHeldNanos;
     private int mProximityTimeOut;
     private boolean mProximityWakeSupported;
 
@@ -102,30 +268,410 @@ public class KeyHandler implements DeviceKeyHandler {
         mPowerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
         mNotificationManager
                 = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
-        mEventHandler = new EventHandler();
+        mAudioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+        mSliderSettleMs = SystemProperties.getInt(SLIDER_SETTLE_PROPERTY, SLIDER_SETTLE_MS);
+        // Gesture actions make Binder calls into several services, so they run on
+        // a thread of our own rather than on whichever looper created us.
+        mHandlerThread = new HandlerThread(TAG, SystemProperties.getInt(
+                THREAD_PRIORITY_PROPERTY, Process.THREAD_PRIORITY_FOREGROUND));
+        mHandlerThread.start();
+        for (int i = 1; i < mMessageStats.length; i++) {
+            mMessageStats[i] = new LatencyHistogram();
+        }
+        mEventHandler = new EventHandler(mHandlerThread.getLooper());
+        mNodePolicy = new GestureNodePolicy(mEventHandler, GESTURE_CIRCLE_SCANCODE,
+                GESTURE_SWIPE_DOWN_SCANCODE, GESTURE_V_SCANCODE, GESTURE_LTR_SCANCODE,
+                GESTURE_GTR_SCANCODE);
         mGestureWakeLock = mPowerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
                 "GestureWakeLock");
+        mGestureWakeLock.setReferenceCounted(false);
 
         final Resources resources = mContext.getResources();
         mProximityTimeOut = resources.getInteger(
                 org.cyanogenmod.platform.internal.R.integer.config_proximityCheckTimeout);
         mProximityWakeSupported = resources.getBoolean(
                 org.cyanogenmod.platform.internal.R.bool.config_proximityCheckOnWake);
+        mDefaultProximity = resources.getBoolean(org.cyanogenmod.platform.internal.R.bool
+                .config_proximityCheckOnWakeEnabledByDefault);
 
         if (mProximityWakeSupported) {
             mSensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
             mProximitySensor = mSensorManager.getDefaultSensor(Sensor.TYPE_PROXIMITY);
             mProximityWakeLock = mPowerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
                     "ProximityWakeLock");
+            if (mProximitySensor != null) {
+                mProximityGate = new ProximityGate(mSensorManager, mProximitySensor,
+                        mEventHandler, PROXIMITY_FRESHNESS_MS);
+                mPocketDetector = new PocketDetector(mSensorManager, mProximityGate,
+                        mSensorManager.getDefaultSensor(Sensor.TYPE_LIGHT), mEventHandler,
+                        SystemProperties.getBoolean(POCKET_NODES_PROPERTY, false)
+                                ? mPocketCallback : null);
+            }
         }
 
-        mVibrator = (Vibrator) context.getSystemService(Context.VIBRATOR_SERVICE);
-        if (mVibrator == null || !mVibrator.hasVibrator()) {
-            mVibrator = null;
+        Vibrator vibrator = (Vibrator) context.getSystemService(Context.VIBRATOR_SERVICE);
+        if (vibrator != null && vibrator.hasVibrator()) {
+            HandlerThread hapticThread = new HandlerThread(TAG + ":haptics");
+            hapticThread.start();
+            mHapticFeedback = new HapticFeedback(vibrator, hapticThread.getLooper(),
+                    sHapticWaveforms);
+        } else {
+            mHapticFeedback = new HapticFeedback(null, mHandlerThread.getLooper(),
+                    sHapticWaveforms);
         }
 
         mCameraManager = (CameraManager) mContext.getSystemService(Context.CAMERA_SERVICE);
-        mCameraManager.registerTorchCallback(new MyTorchCallback(), mEventHandler);
+        // Find the rear camera up front so the first torch gesture does not pay
+        // for enumerating cameras; availability callbacks retry if that fails.
+        mEventHandler.sendEmptyMessage(DISCOVER_CAMERA);
+        mCameraManager.registerAvailabilityCallback(new MyAvailabilityCallback(), mEventHandler);
+
+        // The CM settings provider may not be up yet, so start with an empty
+        // snapshot and load the real values from the handler.
+        mSettings = new SettingsSnapshot(false, false, false, true,
+                GestureActionTable.parse(mActionFactory, DEFAULT_GESTURE_ACTIONS));
+        new SettingsObserver(mEventHandler).observe();
+        mEventHandler.sendEmptyMessage(REFRESH_SETTINGS);
+
+        mRecorder = SystemProperties.getBoolean(RECORDER_PROPERTY, Build.IS_DEBUGGABLE)
+                ? new EventRecorder(new File(RECORDER_FILE), RECORDER_CAPACITY) : null;
+        if (mRecorder != null) {
+            mEventHandler.sendEmptyMessage(OPEN_RECORDER);
+        }
+
+        IntentFilter filter = new IntentFilter(Intent.ACTION_BOOT_COMPLETED);
+        mContext.registerReceiver(mBootCompletedReceiver, filter, null, mEventHandler);
+
+        IntentFilter screenFilter = new IntentFilter();
+        screenFilter.addAction(Intent.ACTION_SCREEN_ON);
+        screenFilter.addAction(Intent.ACTION_SCREEN_OFF);
+        mContext.registerReceiver(mScreenStateReceiver, screenFilter, null, mEventHandler);
+
+        try {
+            ServiceManager.addService(DUMP_SERVICE_NAME, new DumpBinder());
+            // The service manager refuses services without an SELinux
+            // label (sepolicy/service_contexts) without telling us
+            if (ServiceManager.checkService(DUMP_SERVICE_NAME) == null) {
+                Log.w(TAG, "Service " + DUMP_SERVICE_NAME + " was not registered");
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Unable to register " + DUMP_SERVICE_NAME + " service", e);
+        }
+    }
+
+    private final BroadcastReceiver mBootCompletedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            refreshSettings();
+            // The media session service is not up yet when we are created
+            MediaSessionManager sessionManager = (MediaSessionManager)
+                    mContext.getSystemService(Context.MEDIA_SESSION_SERVICE);
+            sessionManager.addOnActiveSessionsChangedListener(mSessionsListener, null,
+                    mEventHandler);
+            mSessionsListener.onActiveSessionsChanged(sessionManager.getActiveSessions(null));
+            syncSliderPosition();
+        }
+    };
+
+    private final MediaSessionManager.OnActiveSessionsChangedListener mSessionsListener =
+            new MediaSessionManager.OnActiveSessionsChangedListener() {
+        @Override
+        public void onActiveSessionsChanged(List<MediaController> controllers) {
+            mNodePolicy.setMediaSessionActive(controllers != null && !controllers.isEmpty());
+        }
+    };
+
+    private final BroadcastReceiver mScreenStateReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            updateProximityGate();
+            final boolean screenOn = Intent.ACTION_SCREEN_ON.equals(intent.getAction());
+            mNodePolicy.setScreenOn(screenOn);
+            if (screenOn) {
+                // Catch up with a slider move whose event got lost
+                syncSliderPosition();
+            }
+        }
+    };
+
+    private final PocketDetector.Callback mPocketCallback = new PocketDetector.Callback() {
+        @Override
+        public void onPocketedChanged(boolean pocketed) {
+            mNodePolicy.setPocketed(pocketed);
+        }
+    };
+
+    private void updateProximityGate() {
+        if (mProximityGate == null) {
+            return;
+        }
+        final SettingsSnapshot settings = mSettings;
+        // Slider events never wait for the proximity check and are not
+        // dropped in a pocket, so there is no point in keeping the sensors
+        // running for them
+        final boolean gesturesPossible = !mPowerManager.isInteractive()
+                && settings.isSetupCompleted() && settings.isGestureNodesEnabled();
+        mProximityGate.setArmed(gesturesPossible && settings.isProximityWakeCheckEnabled());
+        // Pocket detection protects against gestures from inside a pocket
+        // even when the user turned the proximity check off
+        mPocketDetector.setArmed(gesturesPossible);
+    }
+
+    private class SettingsObserver extends ContentObserver {
+        SettingsObserver(Handler handler) {
+            super(handler);
+        }
+
+        void observe() {
+            ContentResolver resolver = mContext.getContentResolver();
+            resolver.registerContentObserver(
+                    CMSettings.Secure.getUriFor(CMSettings.Secure.CM_SETUP_WIZARD_COMPLETED),
+                    false, this);
+            resolver.registerContentObserver(
+                    CMSettings.System.getUriFor(CMSettings.System.PROXIMITY_ON_WAKE),
+                    false, this);
+            resolver.registerContentObserver(CMSettings.System.getUriFor(
+                    CMSettings.System.TOUCHSCREEN_GESTURE_HAPTIC_FEEDBACK), false, this);
+            resolver.registerContentObserver(
+                    Settings.Secure.getUriFor(GESTURE_ACTIONS_SETTING), false, this);
+            resolver.registerContentObserver(
+                    Settings.Secure.getUriFor(GESTURE_NODES_SETTING), false, this);
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            refreshSettings();
+        }
+    }
+
+    private void refreshSettings() {
+        ContentResolver resolver = mContext.getContentResolver();
+        boolean setupCompleted = CMSettings.Secure.getInt(resolver,
+                CMSettings.Secure.CM_SETUP_WIZARD_COMPLETED, 0) != 0;
+        boolean proximityWakeCheckEnabled = CMSettings.System.getInt(resolver,
+                CMSettings.System.PROXIMITY_ON_WAKE, mDefaultProximity ? 1 : 0) == 1;
+        boolean hapticFeedbackEnabled = CMSettings.System.getInt(resolver,
+                CMSettings.System.TOUCHSCREEN_GESTURE_HAPTIC_FEEDBACK, 1) != 0;
+        String userActions = Settings.Secure.getString(resolver, GESTURE_ACTIONS_SETTING);
+        String allowedNodes = Settings.Secure.getString(resolver, GESTURE_NODES_SETTING);
+
+        GestureActionTable actionTable = GestureActionTable.parse(mActionFactory,
+                DEFAULT_GESTURE_ACTIONS, userActions);
+        // Until ConfigPanel published the nodes, they are in their default state, i.e. on
+        boolean gestureNodesEnabled = allowedNodes == null || !allowedNodes.isEmpty();
+        mSettings = new SettingsSnapshot(setupCompleted, proximityWakeCheckEnabled,
+                hapticFeedbackEnabled, gestureNodesEnabled, actionTable);
+        mSettingsRefreshes.incrementAndGet();
+        updateProximityGate();
+        mNodePolicy.setConfig(allowedNodes, actionTable);
+    }
+
+    private class DumpBinder extends Binder {
+        @Override
+        protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+            mContext.enforceCallingOrSelfPermission(Manifest.permission.DUMP, TAG);
+            if (args != null && args.length > 0 && "events".equals(args[0])) {
+                dumpEvents(pw);
+                return;
+            }
+            if (args != null && args.length > 0 && "reset".equals(args[0])) {
+                final boolean reset = mEventHandler.runWithScissors(new Runnable() {
+                    @Override
+                    public void run() {
+                        mLatencyStats.reset();
+                        for (int i = 1; i < mMessageStats.length; i++) {
+                            mMessageStats[i].reset();
+                        }
+                        mSlowMessages.set(0);
+                    }
+                }, DUMP_TIMEOUT_MS);
+                pw.println(reset ? "Latency statistics reset" : "Key handler busy, try again");
+                return;
+            }
+            // Most of the state belongs to the handler thread, so it is
+            // written out there and printed here
+            final StringWriter state = new StringWriter();
+            final boolean dumped = mEventHandler.runWithScissors(new Runnable() {
+                @Override
+                public void run() {
+                    PrintWriter statePw = new PrintWriter(state);
+                    KeyHandler.this.dump(statePw);
+                    statePw.flush();
+                }
+            }, DUMP_TIMEOUT_MS);
+            if (!dumped) {
+                pw.println("KeyHandler state: handler busy for more than "
+                        + DUMP_TIMEOUT_MS + "ms, not dumped");
+                return;
+            }
+            pw.print(state);
+        }
+
+        // Debug builds only: cmd device_keyhandler replay [count]
+        @Override
+        public void onShellCommand(FileDescriptor in, FileDescriptor out, FileDescriptor err,
+                String[] args, ResultReceiver resultReceiver) {
+            (new DebugShellCommand()).exec(this, in, out, err, args, resultReceiver);
+        }
+    }
+
+    private class DebugShellCommand extends ShellCommand {
+        @Override
+        public int onCommand(String cmd) {
+            if (cmd == null) {
+                return handleDefaultCommands(cmd);
+            }
+            final PrintWriter pw = getOutPrintWriter();
+            // Replaying runs gesture actions, so it is not for just anyone
+            // allowed to dump
+            final int uid = Binder.getCallingUid();
+            if (!Build.IS_DEBUGGABLE
+                    || (uid != Process.SHELL_UID && uid != Process.ROOT_UID)) {
+                getErrPrintWriter().println("Not available");
+                return -1;
+            }
+            switch (cmd) {
+            case "replay":
+                return replayEvents(pw, getNextArg()) ? 0 : -1;
+            default:
+                return handleDefaultCommands(cmd);
+            }
+        }
+
+        @Override
+        public void onHelp() {
+            final PrintWriter pw = getOutPrintWriter();
+            pw.println("Key handler debug commands (debuggable builds only):");
+            pw.println("  replay [count]");
+            pw.println("    Feeds the last count recorded events, or all, back in.");
+        }
+    }
+
+    /**
+     * Must be called on the event handler.
+     */
+    private void dump(PrintWriter pw) {
+        pw.println("KeyHandler state:");
+        pw.println("  settings: " + mSettings);
+        pw.println("  settings hits=" + mSettingsHits.get()
+                + " refreshes=" + mSettingsRefreshes.get());
+        if (mProximityGate != null) {
+            pw.println("  proximity gate: " + mProximityGate);
+            pw.println("  pocket detector: " + mPocketDetector
+                    + " rejected=" + mPocketRejected.get());
+        }
+        pw.println("  handler thread: priority="
+                + Process.getThreadPriority(mHandlerThread.getThreadId())
+                + " slowMessages=" + mSlowMessages.get());
+        for (int i = 1; i < mMessageStats.length; i++) {
+            if (mMessageStats[i].getCount() > 0) {
+                pw.print("    " + MESSAGE_NAMES[i] + ": ");
+                mMessageStats[i].dump(pw);
+                pw.println();
+            }
+        }
+        pw.println("  rear camera: " + mRearCameraId + " torch=" + mTorchEnabled
+                + " discovery=" + mCameraDiscoveryNanos / 1000L + "us");
+        synchronized (mGestureWakeLockLock) {
+            pw.println("  gesture wakelock: holders=" + mGestureWakeLockHolders
+                    + " totalHeld=" + mGestureWakeLockHeldNanos / 1000000L + "ms");
+        }
+        pw.println("  slider: settle=" + mSliderSettleMs + "ms");
+        mSliderState.dump(pw, "    ");
+        pw.println("  gesture node policy:");
+        mNodePolicy.dump(pw, "    ");
+        pw.println("  gesture queue:");
+        mGestureQueue.dump(pw, "    ");
+        pw.println("    proximityRejected=" + mProximityRejected
+                + " preparedHits=" + mPreparedHits + " preparedAborts=" + mPreparedAborts);
+        pw.println("  latency:");
+        mLatencyStats.dump(pw, "    ");
+        if (mRecorder != null) {
+            pw.println("  event recorder:");
+            mRecorder.dump(pw, "    ");
+        }
+    }
+
+    private void dumpEvents(PrintWriter pw) {
+        if (mRecorder == null) {
+            pw.println("Event recording is disabled");
+            return;
+        }
+        for (EventRecorder.Record record : mRecorder.getRecords()) {
+            pw.println(record);
+        }
+    }
+
+    /**
+     * Feeds the last count recorded events, or all of them, back into
+     * handleKeyEvent with their original spacing. Pauses longer than
+     * REPLAY_MAX_GAP_MS are shortened. Replayed events come from the virtual
+     * keyboard, so they are recorded again and can be told apart.
+     *
+     * This is not a reproduction of the recording: the events meet today's
+     * settings, proximity and pocket state and queue, so their outcomes can
+     * differ from the recorded ones. Comparing the two is the point.
+     *
+     * @return false if nothing could be replayed
+     */
+    private boolean replayEvents(PrintWriter pw, String countArg) {
+        if (mRecorder == null) {
+            pw.println("Event recording is disabled");
+            return false;
+        }
+        EventRecorder.Record[] records = mRecorder.getRecords();
+        int first = 0;
+        if (countArg != null) {
+            try {
+                first = Math.max(0, records.length - Integer.parseInt(countArg));
+            } catch (NumberFormatException e) {
+                pw.println("Invalid event count " + countArg);
+                return false;
+            }
+        }
+
+        long when = SystemClock.uptimeMillis();
+        for (int i = first; i < records.length; i++) {
+            final EventRecorder.Record record = records[i];
+            if (i > first) {
+                long gap = (record.mEventTimeNanos - records[i - 1].mEventTimeNanos) / 1000000L;
+                when += Math.max(0, Math.min(gap, REPLAY_MAX_GAP_MS));
+            }
+            final long eventTime = when;
+            mEventHandler.postAtTime(new Runnable() {
+                @Override
+                public void run() {
+                    handleKeyEvent(new KeyEvent(eventTime, eventTime, record.mAction,
+                            KeyEvent.KEYCODE_UNKNOWN, 0, 0, KeyCharacterMap.VIRTUAL_KEYBOARD,
+                            record.mScanCode, 0, InputDevice.SOURCE_KEYBOARD));
+                }
+            }, eventTime);
+        }
+        pw.println("Replaying " + (records.length - first) + " events over "
+                + (when - SystemClock.uptimeMillis()) + "ms against the current state;"
+                + " see 'dumpsys " + DUMP_SERVICE_NAME + " events' for the outcomes");
+        return true;
+    }
+
+    private boolean performAction(GestureAction action, int scanCode, long eventTimeNanos) {
+        final long startNanos = System.nanoTime();
+        mLatencyStats.recordNanos(scanCode, GestureLatencyStats.STAGE_DISPATCH,
+                startNanos - eventTimeNanos);
+
+        Trace.traceBegin(TRACE_TAG, action.toString());
+        boolean performed = action.perform();
+        Trace.traceEnd(TRACE_TAG);
+
+        final long endNanos = System.nanoTime();
+        mLatencyStats.recordNanos(scanCode, GestureLatencyStats.STAGE_ACTION,
+                endNanos - startNanos);
+        mLatencyStats.recordNanos(scanCode, GestureLatencyStats.STAGE_TOTAL,
+                endNanos - eventTimeNanos);
+        mNodePolicy.onGesture(scanCode);
+        if (performed) {
+            mHapticFeedback.perform(action, mSettings.isHapticFeedbackEnabled());
+        }
+        return performed;
     }
 
     private class MyTorchCallback extends CameraManager.TorchCallback {
@@ -144,163 +690,639 @@ public class KeyHandler implements DeviceKeyHandler {
         }
     }
 
-    private String getRearCameraId() {
-        if (mRearCameraId == null) {
-            try {
-                for (final String cameraId : mCameraManager.getCameraIdList()) {
-                    CameraCharacteristics characteristics =
-                            mCameraManager.getCameraCharacteristics(cameraId);
-                    int cOrientation = characteristics.get(CameraCharacteristics.LENS_FACING);
-                    if (cOrientation == CameraCharacteristics.LENS_FACING_BACK) {
-                        mRearCameraId = cameraId;
-                        break;
-                    }
+    private class MyAvailabilityCallback extends CameraManager.AvailabilityCallback {
+        @Override
+        public void onCameraAvailable(String cameraId) {
+            if (mRearCameraId == null) {
+                discoverRearCamera();
+            }
+        }
+    }
+
+    private void discoverRearCamera() {
+        if (mRearCameraId != null) {
+            return;
+        }
+        final long startNanos = System.nanoTime();
+        try {
+            for (final String cameraId : mCameraManager.getCameraIdList()) {
+                CameraCharacteristics characteristics =
+                        mCameraManager.getCameraCharacteristics(cameraId);
+                int cOrientation = characteristics.get(CameraCharacteristics.LENS_FACING);
+                if (cOrientation == CameraCharacteristics.LENS_FACING_BACK) {
+                    mRearCameraId = cameraId;
+                    break;
                 }
-            } catch (CameraAccessException e) {
-                // Ignore
             }
+        } catch (CameraAccessException e) {
+            // Ignore, the availability callback will trigger another attempt
+        }
+        mCameraDiscoveryNanos = System.nanoTime() - startNanos;
+
+        if (mRearCameraId != null && !mTorchCallbackRegistered) {
+            // Registering reports the current torch state right away
+            mCameraManager.registerTorchCallback(new MyTorchCallback(), mEventHandler);
+            mTorchCallbackRegistered = true;
         }
-        return mRearCameraId;
     }
 
     private class EventHandler extends Handler {
+        EventHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void dispatchMessage(Message msg) {
+            final int what = msg.what;
+            final long startNanos = System.nanoTime();
+            super.dispatchMessage(msg);
+            final long durationNanos = System.nanoTime() - startNanos;
+
+            final boolean known = what > 0 && what < mMessageStats.length;
+            if (known) {
+                mMessageStats[what].recordNanos(durationNanos);
+            }
+            if (durationNanos > SLOW_MESSAGE_NANOS) {
+                mSlowMessages.incrementAndGet();
+                Log.w(TAG, "Handling " + (known ? MESSAGE_NAMES[what] : "message " + what)
+                        + " took " + durationNanos / 1000000L + "ms");
+            }
+        }
+
         @Override
         public void handleMessage(Message msg) {
-            switch (msg.arg1) {
-            case FLIP_CAMERA_SCANCODE:
-            case GESTURE_CIRCLE_SCANCODE:
-                mGestureWakeLock.acquire(GESTURE_WAKELOCK_DURATION);
-
-                Intent intent = new Intent(cyanogenmod.content.Intent.ACTION_SCREEN_CAMERA_GESTURE);
-                mContext.sendBroadcast(intent, Manifest.permission.STATUS_BAR_SERVICE);
-                doHapticFeedback();
+            switch (msg.what) {
+            case GESTURE_REQUEST:
+                Trace.traceBegin(TRACE_TAG, TRACE_DISPATCH);
+                processGestureQueue();
+                Trace.traceEnd(TRACE_TAG);
                 break;
-            case GESTURE_SWIPE_DOWN_SCANCODE:
-                dispatchMediaKeyWithWakeLockToMediaSession(KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE);
-                doHapticFeedback();
-                break;
-            case GESTURE_V_SCANCODE: {
-                String rearCameraId = getRearCameraId();
-                if (rearCameraId != null) {
-                    mGestureWakeLock.acquire(GESTURE_WAKELOCK_DURATION);
-                    try {
-                        mCameraManager.setTorchMode(rearCameraId, !mTorchEnabled);
-                        mTorchEnabled = !mTorchEnabled;
-                    } catch (CameraAccessException e) {
-                        // Ignore
-                    }
-                    doHapticFeedback();
+            case PROXIMITY_TIMEOUT:
+                if (mWaitingForProximity) {
+                    // The sensor took too long, act on the timeout instead
+                    mProximityGate.cancelRequest();
+                    finishProximityWait(false);
                 }
                 break;
-            }
-            case GESTURE_LTR_SCANCODE:
-                dispatchMediaKeyWithWakeLockToMediaSession(KeyEvent.KEYCODE_MEDIA_PREVIOUS);
-                doHapticFeedback();
+            case REFRESH_SETTINGS:
+                refreshSettings();
+                break;
+            case DISCOVER_CAMERA:
+                discoverRearCamera();
+                break;
+            case SLIDER_SETTLE:
+                commitSliderPosition();
                 break;
-            case GESTURE_GTR_SCANCODE:
-                dispatchMediaKeyWithWakeLockToMediaSession(KeyEvent.KEYCODE_MEDIA_NEXT);
-                doHapticFeedback();
+            case OPEN_RECORDER:
+                mRecorder.open();
                 break;
             }
         }
     }
 
-    private boolean hasSetupCompleted() {
-        return CMSettings.Secure.getInt(mContext.getContentResolver(),
-            CMSettings.Secure.CM_SETUP_WIZARD_COMPLETED, 0) != 0;
+    private class ActionFactory implements GestureActionTable.ActionFactory {
+        @Override
+        public GestureAction createAction(String name, String argument) {
+            try {
+                switch (name) {
+                case GestureActionTable.ACTION_NONE:
+                    return new NoAction();
+                case GestureActionTable.ACTION_CAMERA:
+                    return new CameraAction();
+                case GestureActionTable.ACTION_TORCH:
+                    return new TorchAction();
+                case GestureActionTable.ACTION_MEDIA:
+                    return new MediaKeyAction(parseKeyCode(argument));
+                case GestureActionTable.ACTION_ZEN:
+                    return new ZenModeAction(Integer.parseInt(argument));
+                case GestureActionTable.ACTION_RINGER:
+                    return new RingerModeAction(Integer.parseInt(argument));
+                case GestureActionTable.ACTION_LAUNCH:
+                    ComponentName component = argument != null
+                            ? ComponentName.unflattenFromString(argument) : null;
+                    return component != null ? new LaunchAction(component) : null;
+                case GestureActionTable.ACTION_KEY:
+                    return new InjectKeyAction(parseKeyCode(argument));
+                }
+            } catch (IllegalArgumentException e) {
+                // Missing or malformed argument, fall through
+            }
+            return null;
+        }
+
+        private int parseKeyCode(String argument) {
+            if (argument == null) {
+                throw new IllegalArgumentException("Missing keycode");
+            }
+            int keyCode = KeyEvent.keyCodeFromString(argument);
+            if (keyCode == KeyEvent.KEYCODE_UNKNOWN) {
+                throw new IllegalArgumentException("Unknown keycode " + argument);
+            }
+            return keyCode;
+        }
     }
 
-    public boolean handleKeyEvent(KeyEvent event) {
-        int scanCode = event.getScanCode();
-        boolean isKeySupported = ArrayUtils.contains(sSupportedGestures, scanCode);
-        boolean isSliderModeSupported = sSupportedSliderModes.indexOfKey(scanCode) >= 0;
-        if (!isKeySupported && !isSliderModeSupported) {
+    private class NoAction extends GestureAction {
+        NoAction() {
+            super(GestureActionTable.ACTION_NONE);
+        }
+
+        @Override
+        boolean isUseful(boolean mediaSessionActive) {
             return false;
         }
 
-        if (!hasSetupCompleted()) {
+        @Override
+        boolean perform() {
             return false;
         }
+    }
+
+    private class CameraAction extends GestureAction {
+        private final Intent mIntent =
+                new Intent(cyanogenmod.content.Intent.ACTION_SCREEN_CAMERA_GESTURE);
+
+        CameraAction() {
+            super(GestureActionTable.ACTION_CAMERA);
+        }
+
+        @Override
+        boolean perform() {
+            mContext.sendBroadcastMultiplePermissions(mIntent, CAMERA_GESTURE_PERMISSIONS);
+            return true;
+        }
+
+        @Override
+        boolean coalesces() {
+            return true;
+        }
+
+        @Override
+        long getMinIntervalNanos() {
+            return CAMERA_MIN_INTERVAL_NANOS;
+        }
+    }
+
+    private class TorchAction extends GestureAction {
+        TorchAction() {
+            super(GestureActionTable.ACTION_TORCH);
+        }
+
+        @Override
+        void prepare() {
+            discoverRearCamera();
+        }
+
+        @Override
+        boolean perform() {
+            discoverRearCamera();
+            if (mRearCameraId == null) {
+                return false;
+            }
+            try {
+                // The torch callback confirms or corrects this on the same thread
+                mCameraManager.setTorchMode(mRearCameraId, !mTorchEnabled);
+                mTorchEnabled = !mTorchEnabled;
+            } catch (CameraAccessException e) {
+                // Ignore
+            }
+            return true;
+        }
+
+        @Override
+        boolean coalesces() {
+            return true;
+        }
+
+        @Override
+        long getMinIntervalNanos() {
+            return TOGGLE_MIN_INTERVAL_NANOS;
+        }
+    }
+
+    private class MediaKeyAction extends GestureAction {
+        private final int mKeyCode;
+        // Shared with the media session service, which may hold on to them,
+        // so they are never modified or recycled
+        private final KeyEvent mDownEvent;
+        private final KeyEvent mUpEvent;
+
+        MediaKeyAction(int keyCode) {
+            super(GestureActionTable.ACTION_MEDIA + ":" + keyCode);
+            mKeyCode = keyCode;
+            final long now = SystemClock.uptimeMillis();
+            mDownEvent = new KeyEvent(now, now, KeyEvent.ACTION_DOWN, keyCode, 0);
+            mUpEvent = KeyEvent.changeAction(mDownEvent, KeyEvent.ACTION_UP);
+        }
+
+        @Override
+        void prepare() {
+            getMediaSessionHelper();
+        }
+
+        @Override
+        boolean isUseful(boolean mediaSessionActive) {
+            return mediaSessionActive;
+        }
+
+        @Override
+        boolean perform() {
+            return dispatchMediaKeyWithWakeLockToMediaSession(mDownEvent, mUpEvent);
+        }
+
+        // Play/pause toggles, while skipping tracks must keep every gesture in order
+        @Override
+        boolean coalesces() {
+            return mKeyCode == KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE;
+        }
+
+        @Override
+        long getMinIntervalNanos() {
+            return coalesces() ? TOGGLE_MIN_INTERVAL_NANOS : 0;
+        }
+    }
+
+    private class ZenModeAction extends GestureAction {
+        private final int mZenMode;
+
+        ZenModeAction(int zenMode) {
+            super(GestureActionTable.ACTION_ZEN + ":" + zenMode);
+            mZenMode = zenMode;
+        }
+
+        @Override
+        boolean perform() {
+            // Nothing to do, e.g. when the slider bounced back to where it was
+            if (mNotificationManager.getZenMode() == mZenMode) {
+                return false;
+            }
+            mNotificationManager.setZenMode(mZenMode, null, TAG);
+            return true;
+        }
+    }
+
+    private class RingerModeAction extends GestureAction {
+        private final int mRingerMode;
+
+        RingerModeAction(int ringerMode) {
+            super(GestureActionTable.ACTION_RINGER + ":" + ringerMode);
+            if (!AudioManager.isValidRingerMode(ringerMode)) {
+                throw new IllegalArgumentException("Invalid ringer mode " + ringerMode);
+            }
+            mRingerMode = ringerMode;
+        }
+
+        @Override
+        boolean perform() {
+            boolean changed = false;
+            // Ringer modes only make sense with interruptions allowed
+            if (mNotificationManager.getZenMode() != Settings.Global.ZEN_MODE_OFF) {
+                mNotificationManager.setZenMode(Settings.Global.ZEN_MODE_OFF, null, TAG);
+                changed = true;
+            }
+            if (mAudioManager.getRingerModeInternal() != mRingerMode) {
+                mAudioManager.setRingerModeInternal(mRingerMode);
+                changed = true;
+            }
+            return changed;
+        }
+    }
+
+    private class LaunchAction extends GestureAction {
+        private final ComponentName mComponent;
+        private final Intent mIntent;
+        private final String mWakeReason;
+
+        LaunchAction(ComponentName component) {
+            super(GestureActionTable.ACTION_LAUNCH + ":" + component.flattenToShortString());
+            mComponent = component;
+            mIntent = new Intent(Intent.ACTION_MAIN);
+            mIntent.setComponent(component);
+            mIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+            mWakeReason = TAG + ":" + toString();
+        }
+
+        @Override
+        boolean perform() {
+            mPowerManager.wakeUp(SystemClock.uptimeMillis(), mWakeReason);
+            try {
+                mContext.startActivityAsUser(mIntent, UserHandle.CURRENT);
+            } catch (ActivityNotFoundException e) {
+                Log.w(TAG, "Unable to launch " + mComponent, e);
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        boolean coalesces() {
+            return true;
+        }
+
+        @Override
+        long getMinIntervalNanos() {
+            return CAMERA_MIN_INTERVAL_NANOS;
+        }
+    }
+
+    private class InjectKeyAction extends GestureAction {
+        private final int mKeyCode;
+
+        InjectKeyAction(int keyCode) {
+            super(GestureActionTable.ACTION_KEY + ":" + keyCode);
+            mKeyCode = keyCode;
+        }
+
+        @Override
+        boolean perform() {
+            injectKey(KeyEvent.ACTION_DOWN, SystemClock.uptimeMillis());
+            injectKey(KeyEvent.ACTION_UP, SystemClock.uptimeMillis());
+            return true;
+        }
+
+        private void injectKey(int action, long now) {
+            // The input manager copies injected events before returning, so
+            // pooled events can be handed back right away
+            KeyEvent event = KeyEvent.obtain(now, now, action, mKeyCode, 0, 0,
+                    KeyCharacterMap.VIRTUAL_KEYBOARD, 0, 0, InputDevice.SOURCE_KEYBOARD, null);
+            InputManager.getInstance().injectInputEvent(event,
+                    InputManager.INJECT_INPUT_EVENT_MODE_ASYNC);
+            event.recycle();
+        }
+    }
+
+    private static boolean isSliderScanCode(int scanCode) {
+        return scanCode >= MODE_TOTAL_SILENCE && scanCode <= MODE_NONE;
+    }
+
+    public boolean handleKeyEvent(KeyEvent event) {
+        Trace.traceBegin(TRACE_TAG, TRACE_CLASSIFY);
+        final SettingsSnapshot settings = mSettings;
+        final int outcome = classifyKeyEvent(event, settings);
+        if (outcome != EventRecorder.OUTCOME_UNHANDLED && mRecorder != null) {
+            recordEvent(event, outcome, settings);
+        }
+        Trace.traceEnd(TRACE_TAG);
+        return outcome != EventRecorder.OUTCOME_UNHANDLED
+                && outcome != EventRecorder.OUTCOME_SETUP_INCOMPLETE;
+    }
+
+    private void recordEvent(KeyEvent event, int outcome, SettingsSnapshot settings) {
+        int flags = 0;
+        if (settings.isSetupCompleted()) {
+            flags |= EventRecorder.FLAG_SETUP_COMPLETED;
+        }
+        if (settings.isProximityWakeCheckEnabled()) {
+            flags |= EventRecorder.FLAG_PROXIMITY_CHECK;
+        }
+        if (settings.isHapticFeedbackEnabled()) {
+            flags |= EventRecorder.FLAG_HAPTIC_FEEDBACK;
+        }
+        if (mPocketDetector != null && mPocketDetector.isPocketed()) {
+            flags |= EventRecorder.FLAG_POCKETED;
+        }
+        if (event.getDeviceId() == KeyCharacterMap.VIRTUAL_KEYBOARD) {
+            flags |= EventRecorder.FLAG_INJECTED;
+        }
+        mRecorder.record(event.getEventTimeNano(), event.getScanCode(), event.getAction(),
+                outcome, mProximityGate != null
+                        ? mProximityGate.query() : ProximityGate.RESULT_UNKNOWN,
+                flags, (int) mSettingsRefreshes.get(), mGestureQueue.size());
+    }
+
+    /**
+     * Decides what to do with the event and hands it on.
+     *
+     * @return one of the EventRecorder.OUTCOME_* constants
+     */
+    private int classifyKeyEvent(KeyEvent event, SettingsSnapshot settings) {
+        int scanCode = event.getScanCode();
+        GestureAction action = settings.getActionTable().get(scanCode);
+        if (action == null) {
+            return EventRecorder.OUTCOME_UNHANDLED;
+        }
+
+        mSettingsHits.incrementAndGet();
+        if (!settings.isSetupCompleted()) {
+            return EventRecorder.OUTCOME_SETUP_INCOMPLETE;
+        }
 
         // We only want ACTION_UP event, except FLIP_CAMERA_SCANCODE
         if (scanCode == FLIP_CAMERA_SCANCODE) {
             if (event.getAction() != KeyEvent.ACTION_DOWN) {
-                return true;
+                return EventRecorder.OUTCOME_FILTERED;
             }
         } else if (event.getAction() != KeyEvent.ACTION_UP) {
-            return true;
+            return EventRecorder.OUTCOME_FILTERED;
+        }
+
+        // Drop gestures from inside a pocket before doing any work for them
+        if (!isSliderScanCode(scanCode) && mPocketDetector != null
+                && mPocketDetector.isPocketed()) {
+            mPocketRejected.incrementAndGet();
+            return EventRecorder.OUTCOME_POCKETED;
         }
 
-        if (isSliderModeSupported) {
-            mNotificationManager.setZenMode(sSupportedSliderModes.get(scanCode), null, TAG);
-            doHapticFeedback();
-        } else if (!mEventHandler.hasMessages(GESTURE_REQUEST)) {
-            Message msg = getMessageForKeyEvent(scanCode);
-            boolean defaultProximity = mContext.getResources().getBoolean(
-                org.cyanogenmod.platform.internal.R.bool.config_proximityCheckOnWakeEnabledByDefault);
-            boolean proximityWakeCheckEnabled = CMSettings.System.getInt(mContext.getContentResolver(),
-                    CMSettings.System.PROXIMITY_ON_WAKE, defaultProximity ? 1 : 0) == 1;
-            if (mProximityWakeSupported && proximityWakeCheckEnabled && mProximitySensor != null) {
-                mEventHandler.sendMessageDelayed(msg, mProximityTimeOut);
-                processEvent(scanCode);
+        // Keep the device awake until the gesture has been handled. This is
+        // taken before queueing so the handler can never release it first.
+        acquireGestureWakeLock();
+        final long eventTimeNanos = event.getEventTimeNano();
+        if (isSliderScanCode(scanCode)) {
+            // Every report restarts the settle window, so a move through the
+            // middle position or a bouncing switch only commits the final one
+            if (mSliderState.offer(scanCode, eventTimeNanos)) {
+                Trace.asyncTraceBegin(TRACE_TAG, TRACE_SLIDER, 0);
             } else {
-                mEventHandler.sendMessage(msg);
+                releaseGestureWakeLock();
             }
+            mEventHandler.removeMessages(SLIDER_SETTLE);
+            mEventHandler.sendEmptyMessageDelayed(SLIDER_SETTLE, mSliderSettleMs);
+            return EventRecorder.OUTCOME_SLIDER;
         }
-        return true;
+        // Opened before queueing so the handler can never close it first
+        Trace.asyncTraceBegin(TRACE_TAG, action.toString(), (int) eventTimeNanos);
+        final int result = mGestureQueue.offer(action, scanCode, eventTimeNanos);
+        if (result == GestureQueue.RESULT_QUEUED) {
+            traceQueueDepth();
+            if (!mEventHandler.hasMessages(GESTURE_REQUEST)) {
+                mEventHandler.sendEmptyMessage(GESTURE_REQUEST);
+            }
+        } else {
+            Trace.asyncTraceEnd(TRACE_TAG, action.toString(), (int) eventTimeNanos);
+            releaseGestureWakeLock();
+        }
+        // GestureQueue results map onto the queue outcomes in order
+        return EventRecorder.OUTCOME_QUEUED + result;
     }
 
-    private Message getMessageForKeyEvent(int scancode) {
-        Message msg = mEventHandler.obtainMessage(GESTURE_REQUEST);
-        msg.arg1 = scancode;
-        return msg;
+    private void acquireGestureWakeLock() {
+        synchronized (mGestureWakeLockLock) {
+            if (mGestureWakeLockHolders++ == 0) {
+                mGestureWakeLockAcquiredNanos = System.nanoTime();
+            }
+            mGestureWakeLock.acquire(GESTURE_WAKELOCK_TIMEOUT);
+        }
+    }
+
+    private void releaseGestureWakeLock() {
+        synchronized (mGestureWakeLockLock) {
+            if (mGestureWakeLockHolders == 0) {
+                return;
+            }
+            if (--mGestureWakeLockHolders == 0) {
+                mGestureWakeLockHeldNanos += System.nanoTime() - mGestureWakeLockAcquiredNanos;
+                mGestureWakeLock.release();
+            }
+        }
     }
 
-    private void processEvent(final int scancode) {
-        mProximityWakeLock.acquire();
-        mSensorManager.registerListener(new SensorEventListener() {
-            @Override
-            public void onSensorChanged(SensorEvent event) {
-                mProximityWakeLock.release();
-                mSensorManager.unregisterListener(this);
-                if (!mEventHandler.hasMessages(GESTURE_REQUEST)) {
-                    // The sensor took to long, ignoring.
+    /**
+     * Executes queued gestures in order. A gesture that needs a proximity
+     * reading the gate cannot answer yet stays at the head of the queue until
+     * the reading arrives or the proximity timeout expires.
+     */
+    private void processGestureQueue() {
+        while (!mWaitingForProximity && mGestureQueue.peek(mCurrentGesture)) {
+            if (mProximityGate != null && mSettings.isProximityWakeCheckEnabled()) {
+                int result = mProximityGate.query();
+                if (result == ProximityGate.RESULT_NEAR) {
+                    mGestureQueue.remove();
+                    mProximityRejected++;
+                    finishGesture(mCurrentGesture);
+                    continue;
+                } else if (result == ProximityGate.RESULT_UNKNOWN) {
+                    mWaitingForProximity = true;
+                    mProximityWakeLock.acquire();
+                    mCurrentGesture.mProximityStartNanos = System.nanoTime();
+                    Trace.asyncTraceBegin(TRACE_TAG, TRACE_PROXIMITY, 0);
+                    mProximityGate.requestReading(mProximityCallback);
+                    mEventHandler.sendEmptyMessageDelayed(PROXIMITY_TIMEOUT, mProximityTimeOut);
+                    // The reading is delivered on this thread, so it is
+                    // handled as soon as preparing is done
+                    prepareCurrentGesture();
                     return;
                 }
-                mEventHandler.removeMessages(GESTURE_REQUEST);
-                if (event.values[0] == mProximitySensor.getMaximumRange()) {
-                    Message msg = getMessageForKeyEvent(scancode);
-                    mEventHandler.sendMessage(msg);
-                }
             }
+            mGestureQueue.remove();
+            runCurrentGesture();
+        }
+    }
 
-            @Override
-            public void onAccuracyChanged(Sensor sensor, int accuracy) {}
+    private void prepareCurrentGesture() {
+        final long startNanos = System.nanoTime();
+        Trace.traceBegin(TRACE_TAG, TRACE_PREPARE);
+        mCurrentGesture.mAction.prepare();
+        Trace.traceEnd(TRACE_TAG);
+        mLatencyStats.recordNanos(mCurrentGesture.mScanCode, GestureLatencyStats.STAGE_PREPARE,
+                System.nanoTime() - startNanos);
+    }
 
-        }, mProximitySensor, SensorManager.SENSOR_DELAY_FASTEST);
+    private void runCurrentGesture() {
+        performAction(mCurrentGesture.mAction, mCurrentGesture.mScanCode,
+                mCurrentGesture.mEventTimeNanos);
+        finishGesture(mCurrentGesture);
     }
 
-    private void dispatchMediaKeyWithWakeLockToMediaSession(int keycode) {
-        MediaSessionLegacyHelper helper = MediaSessionLegacyHelper.getHelper(mContext);
-        if (helper != null) {
-            KeyEvent event = new KeyEvent(SystemClock.uptimeMillis(),
-                    SystemClock.uptimeMillis(), KeyEvent.ACTION_DOWN, keycode, 0);
-            helper.sendMediaButtonEvent(event, true);
-            event = KeyEvent.changeAction(event, KeyEvent.ACTION_UP);
-            helper.sendMediaButtonEvent(event, true);
-        } else {
-            Log.w(TAG, "Unable to send media key event");
+    private void finishGesture(GestureQueue.Entry gesture) {
+        if (gesture.mAction != null) {
+            Trace.asyncTraceEnd(TRACE_TAG, gesture.mAction.toString(),
+                    (int) gesture.mEventTimeNanos);
+            traceQueueDepth();
         }
+        mLatencyStats.recordNanos(gesture.mScanCode, GestureLatencyStats.STAGE_WAKELOCK,
+                System.nanoTime() - gesture.mQueuedNanos);
+        gesture.clear();
+        releaseGestureWakeLock();
     }
 
-    private void doHapticFeedback() {
-        if (mVibrator == null) {
+    /**
+     * Acts on the slider position once it has settled. The action is looked
+     * up only now, so a configuration change during the settle window is
+     * honoured.
+     */
+    private void commitSliderPosition() {
+        if (!mSliderState.takePending(mSliderGesture)) {
             return;
         }
-        boolean enabled = CMSettings.System.getInt(mContext.getContentResolver(),
-                CMSettings.System.TOUCHSCREEN_GESTURE_HAPTIC_FEEDBACK, 1) != 0;
-        if (enabled) {
-            mVibrator.vibrate(50);
+        final int scanCode = mSliderGesture.mScanCode;
+        GestureAction action = mSettings.getActionTable().get(scanCode);
+        boolean changed = action != null
+                && performAction(action, scanCode, mSliderGesture.mEventTimeNanos);
+        mSliderState.onCommitted(scanCode, changed);
+        finishGesture(mSliderGesture);
+        Trace.asyncTraceEnd(TRACE_TAG, TRACE_SLIDER, 0);
+    }
+
+    /**
+     * Applies the position the slider is in, unless it was committed
+     * already. Unlike a move, this is silent and not counted in the latency
+     * stats.
+     */
+    private void syncSliderPosition() {
+        if (!mSettings.isSetupCompleted()) {
+            return;
+        }
+        Trace.traceBegin(TRACE_TAG, TRACE_SLIDER_SYNC);
+        final long startNanos = System.nanoTime();
+        final int scanCode = mSliderState.getUnsyncedScanCode();
+        GestureAction action = scanCode != 0 ? mSettings.getActionTable().get(scanCode) : null;
+        if (action != null) {
+            mSliderState.onCommitted(scanCode, action.perform());
+        }
+        mSliderState.onSynced(action != null, System.nanoTime() - startNanos);
+        Trace.traceEnd(TRACE_TAG);
+    }
+
+    private void traceQueueDepth() {
+        if (Trace.isTagEnabled(TRACE_TAG)) {
+            Trace.traceCounter(TRACE_TAG, TRACE_QUEUE_DEPTH, mGestureQueue.size());
+        }
+    }
+
+    private void finishProximityWait(boolean near) {
+        mWaitingForProximity = false;
+        mEventHandler.removeMessages(PROXIMITY_TIMEOUT);
+        mProximityWakeLock.release();
+        Trace.asyncTraceEnd(TRACE_TAG, TRACE_PROXIMITY, 0);
+        mLatencyStats.recordNanos(mCurrentGesture.mScanCode, GestureLatencyStats.STAGE_PROXIMITY,
+                System.nanoTime() - mCurrentGesture.mProximityStartNanos);
+        mGestureQueue.remove();
+        if (near) {
+            mProximityRejected++;
+            mPreparedAborts++;
+            mCurrentGesture.mAction.abort();
+            finishGesture(mCurrentGesture);
+        } else {
+            mPreparedHits++;
+            runCurrentGesture();
+        }
+        processGestureQueue();
+    }
+
+    private final ProximityGate.Callback mProximityCallback = new ProximityGate.Callback() {
+        @Override
+        public void onProximityResult(boolean near) {
+            if (mWaitingForProximity) {
+                finishProximityWait(near);
+            }
+        }
+    };
+
+    private MediaSessionLegacyHelper getMediaSessionHelper() {
+        if (mMediaSessionHelper == null) {
+            mMediaSessionHelper = MediaSessionLegacyHelper.getHelper(mContext);
+        }
+        return mMediaSessionHelper;
+    }
+
+    private boolean dispatchMediaKeyWithWakeLockToMediaSession(KeyEvent down, KeyEvent up) {
+        MediaSessionLegacyHelper helper = getMediaSessionHelper();
+        if (helper == null) {
+            Log.w(TAG, "Unable to send media key event");
+            return false;
         }
+        helper.sendMediaButtonEvent(down, true);
+        helper.sendMediaButtonEvent(up, true);
+        return true;
     }
 }
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.settings.device;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free, fixed-size latency histogram with log-linear buckets.
+ *
+ * Values are recorded in microseconds. Every power of two is split into
+ * eight sub-buckets, giving a worst-case error of 12.5% from 1us up to
+ * roughly 67s; larger values land in the last bucket. Recording never
+ * allocates and is safe from any thread.
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Values below this are counted exactly
+    private static final int LINEAR_LIMIT = SUB_BUCKETS * 2;
+    private static final int LINEAR_LIMIT_BITS = SUB_BUCKET_BITS + 1;
+    private static final int MAX_MAGNITUDE = 26;
+    private static final int BUCKET_COUNT =
+            LINEAR_LIMIT + (MAX_MAGNITUDE - LINEAR_LIMIT_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    void recordNanos(long nanos) {
+        record(nanos / 1000L);
+    }
+
+    void record(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+        mBuckets.incrementAndGet(bucketFor(micros));
+        mCount.incrementAndGet();
+        mSum.addAndGet(micros);
+
+        long max = mMax.get();
+        while (micros > max && !mMax.compareAndSet(max, micros)) {
+            max = mMax.get();
+        }
+    }
+
+    long getCount() {
+        return mCount.get();
+    }
+
+    void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding the given percentile.
+     */
+    long getPercentile(double percentile) {
+        final long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        final long target = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mBuckets.get(i);
+            if (seen >= target) {
+                return Math.min(upperBoundOf(i), mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    void dump(PrintWriter pw) {
+        final long count = mCount.get();
+        if (count == 0) {
+            pw.print("n=0");
+            return;
+        }
+        pw.print("n=" + count);
+        pw.print(" mean=" + formatMicros(mSum.get() / count));
+        pw.print(" p50=" + formatMicros(getPercentile(50)));
+        pw.print(" p90=" + formatMicros(getPercentile(90)));
+        pw.print(" p99=" + formatMicros(getPercentile(99)));
+        pw.print(" max=" + formatMicros(mMax.get()));
+    }
+
+    private static String formatMicros(long micros) {
+        if (micros < 1000) {
+            return micros + "us";
+        }
+        return String.format("%.1fms", micros / 1000.0);
+    }
+
+    private static int bucketFor(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        final int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        if (magnitude > MAX_MAGNITUDE) {
+            return BUCKET_COUNT - 1;
+        }
+        final int subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_LIMIT + (magnitude - LINEAR_LIMIT_BITS) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long upperBoundOf(int bucket) {
+        if (bucket < LINEAR_LIMIT) {
+            return bucket;
+        }
+        final int magnitude = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + LINEAR_LIMIT_BITS;
+        final int subBucket = (bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+        final int shift = magnitude - SUB_BUCKET_BITS;
+        final long lower = (1L << magnitude) | ((long) subBucket << shift);
+        return lower + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.settings.device;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Tracks whether the device is in a pocket or bag while the screen is off.
+ *
+ * The device counts as pocketed once the proximity sensor has reported near
+ * and the ambient light has stayed dark for a while. Proximity readings come
+ * from the {@link ProximityGate}, which shares its registration, and are
+ * delivered right away, so taking the device out of the pocket is noticed
+ * immediately. Light changes all the time, so its events are batched in the
+ * sensor hub FIFO and the application processor is not woken up for them.
+ * When proximity turns near, the FIFO is flushed, so the device does not
+ * have to wait for the batch, or for the next wakeup if it suspends, to find
+ * out whether it is dark.
+ *
+ * An optional callback is told when the device enters or leaves a pocket,
+ * e.g. to stop the touch controller from looking for gestures meanwhile.
+ *
+ * Sensor events and state changes happen on the detector's handler;
+ * {@link #isPocketed()} may be called from any thread.
+ */
+final class PocketDetector implements SensorEventListener, ProximityGate.Listener {
+
+    interface Callback {
+        void onPocketedChanged(boolean pocketed);
+    }
+
+    // Darker than this counts as covered
+    private static final float POCKET_MAX_LUX = 3.0f;
+    // Covered and dark for this long counts as pocketed
+    private static final long POCKET_ENTER_NANOS = 1000 * 1000000L;
+    // How long light events may wait in the sensor FIFO
+    private static final int LIGHT_MAX_REPORT_LATENCY_US = 5 * 1000000;
+
+    private final SensorManager mSensorManager;
+    private final ProximityGate mProximityGate;
+    private final Sensor mLightSensor;
+    private final Handler mHandler;
+    private final Callback mCallback;
+
+    private boolean mArmed;
+    private boolean mHaveProximity;
+    private boolean mNear;
+    private boolean mHaveLight;
+    private float mLux;
+    // Sensor time since which the device has been covered and dark, or 0
+    private volatile long mCoveredSinceNanos;
+    // Last state reported to the callback
+    private boolean mReportedPocketed;
+    private long mPocketedCount;
+
+    /**
+     * @param lightSensor may be null, in which case proximity alone decides
+     * @param callback may be null
+     */
+    PocketDetector(SensorManager sensorManager, ProximityGate proximityGate, Sensor lightSensor,
+            Handler handler, Callback callback) {
+        mSensorManager = sensorManager;
+        mProximityGate = proximityGate;
+        mLightSensor = lightSensor;
+        mHandler = handler;
+        mCallback = callback;
+        proximityGate.setListener(this);
+    }
+
+    /**
+     * Listens to the sensors while armed. Must be called on the handler.
+     */
+    void setArmed(boolean armed) {
+        if (mArmed == armed) {
+            return;
+        }
+        mArmed = armed;
+        if (armed) {
+            // Light first, so a near reading the gate hands over right away
+            // can flush it
+            if (mLightSensor != null) {
+                mSensorManager.registerListener(this, mLightSensor,
+                        SensorManager.SENSOR_DELAY_NORMAL, LIGHT_MAX_REPORT_LATENCY_US,
+                        mHandler);
+            }
+            mProximityGate.setTracking(true);
+        } else {
+            mProximityGate.setTracking(false);
+            if (mLightSensor != null) {
+                mSensorManager.unregisterListener(this);
+            }
+            mHaveProximity = false;
+            mHaveLight = false;
+            update(0);
+        }
+    }
+
+    /**
+     * Returns true if the device has been covered and dark for long enough.
+     */
+    boolean isPocketed() {
+        final long since = mCoveredSinceNanos;
+        return since != 0 && SystemClock.elapsedRealtimeNanos() - since >= POCKET_ENTER_NANOS;
+    }
+
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        if (event.sensor == mLightSensor) {
+            mHaveLight = true;
+            mLux = event.values[0];
+            update(event.timestamp);
+        }
+    }
+
+    @Override
+    public void onProximityChanged(long timestampNanos, boolean near) {
+        if (!mArmed) {
+            // A reading the gate took for itself
+            return;
+        }
+        mHaveProximity = true;
+        mNear = near;
+        if (near && mLightSensor != null) {
+            // Deliver the batched light readings now; the one taken when
+            // light was registered may be all there is
+            mSensorManager.flush(this);
+        }
+        update(timestampNanos);
+    }
+
+    private void update(long timestampNanos) {
+        final boolean dark = mLightSensor == null || (mHaveLight && mLux <= POCKET_MAX_LUX);
+        final boolean covered = mArmed && mHaveProximity && mNear && dark;
+        if (!covered) {
+            mCoveredSinceNanos = 0;
+        } else if (mCoveredSinceNanos == 0) {
+            // Batched events carry the time they were measured, not delivered
+            mCoveredSinceNanos = Math.max(1, timestampNanos);
+        }
+
+        if (covered && !mReportedPocketed) {
+            // Check again once the device has been covered long enough
+            final long remainingNanos = mCoveredSinceNanos + POCKET_ENTER_NANOS
+                    - SystemClock.elapsedRealtimeNanos();
+            mHandler.removeCallbacks(mReportRunnable);
+            mHandler.postDelayed(mReportRunnable, Math.max(0, remainingNanos / 1000000L));
+        } else if (!covered) {
+            mHandler.removeCallbacks(mReportRunnable);
+            report(false);
+        }
+    }
+
+    private final Runnable mReportRunnable = new Runnable() {
+        @Override
+        public void run() {
+            report(isPocketed());
+        }
+    };
+
+    private void report(boolean pocketed) {
+        if (mReportedPocketed == pocketed) {
+            return;
+        }
+        mReportedPocketed = pocketed;
+        if (pocketed) {
+            mPocketedCount++;
+        }
+        if (mCallback != null) {
+            mCallback.onPocketedChanged(pocketed);
+        }
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+    }
+
+    @Override
+    public String toString() {
+        return "armed=" + mArmed + " pocketed=" + isPocketed() + " near=" + mNear
+                + " lux=" + (mHaveLight ? mLux : "?") + " timesPocketed=" + mPocketedCount;
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.settings.device;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Long-lived proximity tracker used to gate screen-off gestures.
+ *
+ * While armed or tracking, the proximity listener stays registered and the
+ * last reading is always current, because the sensor reports on change and
+ * delivers its state on registration. Otherwise, a reading is trusted only
+ * inside a short freshness window. If neither applies, a one-shot reading
+ * can be requested.
+ *
+ * The gate owns the only proximity registration of the key handler; a
+ * listener, e.g. the pocket detector, gets every reading through it.
+ */
+final class ProximityGate implements SensorEventListener {
+
+    static final int RESULT_UNKNOWN = 0;
+    static final int RESULT_FAR = 1;
+    static final int RESULT_NEAR = 2;
+
+    interface Callback {
+        void onProximityResult(boolean near);
+    }
+
+    interface Listener {
+        /**
+         * @param timestampNanos when the reading was taken, in the
+         *                       {@link SystemClock#elapsedRealtimeNanos()} base
+         */
+        void onProximityChanged(long timestampNanos, boolean near);
+    }
+
+    private final SensorManager mSensorManager;
+    private final Sensor mSensor;
+    private final Handler mHandler;
+    private final long mFreshnessNanos;
+
+    private Listener mListener;
+    private boolean mArmed;
+    private boolean mTracking;
+    private boolean mRegistered;
+    // Whether a reading arrived since the listener was last registered for good
+    private boolean mReadingCurrent;
+    private boolean mLastNear;
+    private long mLastReadingNanos;
+    private Callback mPendingCallback;
+
+    // What query() needs, packed so it can be read without the lock: the
+    // reading time shifted left by two, and the SNAPSHOT_* bits
+    private static final long SNAPSHOT_NEAR = 1;
+    private static final long SNAPSHOT_CURRENT = 2;
+    private volatile long mSnapshot;
+
+    ProximityGate(SensorManager sensorManager, Sensor sensor, Handler handler,
+            long freshnessMillis) {
+        mSensorManager = sensorManager;
+        mSensor = sensor;
+        mHandler = handler;
+        mFreshnessNanos = freshnessMillis * 1000000L;
+    }
+
+    /**
+     * Sets the listener told about every reading. Readings are delivered on
+     * the gate's handler.
+     */
+    synchronized void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Keeps the sensor registered while armed. Callers arm the gate while the
+     * screen is off and gestures need the proximity check.
+     */
+    synchronized void setArmed(boolean armed) {
+        if (mArmed == armed) {
+            return;
+        }
+        final boolean wasListening = isListening();
+        mArmed = armed;
+        onListeningChanged(wasListening);
+    }
+
+    synchronized boolean isArmed() {
+        return mArmed;
+    }
+
+    /**
+     * Keeps the sensor registered for the listener. If a current reading is
+     * available already, the listener is told about it right away. Must be
+     * called on the gate's handler.
+     */
+    void setTracking(boolean tracking) {
+        final Listener listener;
+        final boolean near;
+        final long readingNanos;
+        synchronized (this) {
+            if (mTracking == tracking) {
+                return;
+            }
+            final boolean wasListening = isListening();
+            mTracking = tracking;
+            onListeningChanged(wasListening);
+            listener = tracking && mReadingCurrent ? mListener : null;
+            near = mLastNear;
+            readingNanos = mLastReadingNanos;
+        }
+        if (listener != null) {
+            listener.onProximityChanged(readingNanos, near);
+        }
+    }
+
+    /**
+     * Returns the current proximity state if a trustworthy reading exists.
+     * Does not take the gate's lock, so it may be called from the input path.
+     */
+    int query() {
+        final long snapshot = mSnapshot;
+        if (snapshot == 0) {
+            return RESULT_UNKNOWN;
+        }
+        if ((snapshot & SNAPSHOT_CURRENT) == 0
+                && SystemClock.elapsedRealtimeNanos() - (snapshot >>> 2) > mFreshnessNanos) {
+            return RESULT_UNKNOWN;
+        }
+        return (snapshot & SNAPSHOT_NEAR) != 0 ? RESULT_NEAR : RESULT_FAR;
+    }
+
+    /**
+     * Delivers the next reading to the callback on the gate's handler,
+     * registering the sensor temporarily if the gate is not listening.
+     */
+    synchronized void requestReading(Callback callback) {
+        mPendingCallback = callback;
+        updateRegistration();
+    }
+
+    /**
+     * Drops a pending reading request.
+     *
+     * @return true if a request was pending
+     */
+    synchronized boolean cancelRequest() {
+        if (mPendingCallback == null) {
+            return false;
+        }
+        mPendingCallback = null;
+        updateRegistration();
+        return true;
+    }
+
+    // Whether the sensor stays registered regardless of reading requests
+    private boolean isListening() {
+        return mArmed || mTracking;
+    }
+
+    private void onListeningChanged(boolean wasListening) {
+        if (isListening() != wasListening) {
+            mReadingCurrent = false;
+            updateSnapshot();
+        }
+        updateRegistration();
+    }
+
+    private void updateSnapshot() {
+        if (mLastReadingNanos == 0) {
+            mSnapshot = 0;
+            return;
+        }
+        mSnapshot = (mLastReadingNanos << 2)
+                | (isListening() && mReadingCurrent ? SNAPSHOT_CURRENT : 0)
+                | (mLastNear ? SNAPSHOT_NEAR : 0);
+    }
+
+    private void updateRegistration() {
+        boolean wanted = isListening() || mPendingCallback != null;
+        if (wanted && !mRegistered) {
+            mSensorManager.registerListener(this, mSensor,
+                    SensorManager.SENSOR_DELAY_FASTEST, mHandler);
+            mRegistered = true;
+        } else if (!wanted && mRegistered) {
+            mSensorManager.unregisterListener(this);
+            mRegistered = false;
+        }
+    }
+
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        final Callback callback;
+        final Listener listener;
+        final boolean near;
+        final long readingNanos;
+        synchronized (this) {
+            near = event.values[0] < mSensor.getMaximumRange();
+            readingNanos = SystemClock.elapsedRealtimeNanos();
+            mLastNear = near;
+            mLastReadingNanos = readingNanos;
+            mReadingCurrent = isListening();
+            updateSnapshot();
+            callback = mPendingCallback;
+            mPendingCallback = null;
+            listener = mListener;
+            updateRegistration();
+        }
+        if (callback != null) {
+            callback.onProximityResult(near);
+        }
+        if (listener != null) {
+            listener.onProximityChanged(readingNanos, near);
+        }
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "armed=" + mArmed + " tracking=" + mTracking + " registered=" + mRegistered
+                + " near=" + mLastNear + " lastReading=" + mLastReadingNanos / 1000000L;
+    }
+}
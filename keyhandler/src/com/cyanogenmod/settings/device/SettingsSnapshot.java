@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.settings.device;
+
+/**
+ * Immutable view of every setting the key handler consults while handling
+ * an event. Instances are rebuilt off the input path whenever one of the
+ * underlying settings changes, so handling a key never has to query a
+ * settings provider.
+ */
+final class SettingsSnapshot {
+
+    private final boolean mSetupCompleted;
+    private final boolean mProximityWakeCheckEnabled;
+    private final boolean mHapticFeedbackEnabled;
+    private final boolean mGestureNodesEnabled;
+    private final GestureActionTable mActionTable;
+
+    SettingsSnapshot(boolean setupCompleted, boolean proximityWakeCheckEnabled,
+            boolean hapticFeedbackEnabled, boolean gestureNodesEnabled,
+            GestureActionTable actionTable) {
+        mSetupCompleted = setupCompleted;
+        mProximityWakeCheckEnabled = proximityWakeCheckEnabled;
+        mHapticFeedbackEnabled = hapticFeedbackEnabled;
+        mGestureNodesEnabled = gestureNodesEnabled;
+        mActionTable = actionTable;
+    }
+
+    boolean isSetupCompleted() {
+        return mSetupCompleted;
+    }
+
+    boolean isProximityWakeCheckEnabled() {
+        return mProximityWakeCheckEnabled;
+    }
+
+    boolean isHapticFeedbackEnabled() {
+        return mHapticFeedbackEnabled;
+    }
+
+    /**
+     * Whether the user enabled any of the touchpanel gesture nodes, i.e.
+     * whether gestures can arrive while the screen is off.
+     */
+    boolean isGestureNodesEnabled() {
+        return mGestureNodesEnabled;
+    }
+
+    GestureActionTable getActionTable() {
+        return mActionTable;
+    }
+
+    @Override
+    public String toString() {
+        return "setupCompleted=" + mSetupCompleted
+                + " proximityWakeCheck=" + mProximityWakeCheckEnabled
+                + " hapticFeedback=" + mHapticFeedbackEnabled
+                + " gestureNodes=" + mGestureNodesEnabled;
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.settings.device;
+
+import android.os.FileUtils;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Debounce state for the notification slider.
+ *
+ * Moving the slider from one end to the other passes the middle position and
+ * the switch may bounce on the way, so a single move can report several
+ * positions in quick succession. Every report replaces the pending one, and
+ * only the position still pending when the settle window expires is
+ * committed.
+ *
+ * The driver only reports moves, so the position the slider is in at boot,
+ * or was moved to while events were lost, has to be read from the switch
+ * state and synchronized explicitly.
+ */
+final class SliderState {
+
+    private static final String TAG = SliderState.class.getSimpleName();
+
+    static final int POSITION_UNKNOWN = -1;
+    static final int POSITION_TOP = 0;
+    static final int POSITION_MIDDLE = 1;
+    static final int POSITION_BOTTOM = 2;
+
+    private static final String[] POSITION_NODES = {
+        "/proc/tri-state-key/keyCode_top",
+        "/proc/tri-state-key/keyCode_middle",
+        "/proc/tri-state-key/keyCode_bottom"
+    };
+
+    // Switch state of the tri-state-key driver, 1 to 3 from top to bottom
+    private static final String SWITCH_STATE_NODE = "/sys/class/switch/tri-state-key/state";
+
+    private boolean mPending;
+    private int mPendingScanCode;
+    private long mPendingEventTimeNanos;
+    private long mPendingSinceNanos;
+    private int mCommittedScanCode;
+
+    private long mEvents;
+    private long mSuperseded;
+    private long mCommits;
+    private long mUnchanged;
+    private long mSyncs;
+    private long mSyncsApplied;
+    private long mLastSyncNanos;
+    private long mMaxSyncNanos;
+
+    /**
+     * Records a reported position, replacing any position still pending.
+     *
+     * @return true if nothing was pending, i.e. this report opens a new
+     *         settle window
+     */
+    synchronized boolean offer(int scanCode, long eventTimeNanos) {
+        mEvents++;
+        final boolean opened = !mPending;
+        if (opened) {
+            mPending = true;
+            mPendingSinceNanos = System.nanoTime();
+        } else {
+            mSuperseded++;
+        }
+        mPendingScanCode = scanCode;
+        mPendingEventTimeNanos = eventTimeNanos;
+        return opened;
+    }
+
+    /**
+     * Moves the pending position into out. The time the settle window was
+     * opened is reported as the queueing time.
+     *
+     * @return false if no position was pending
+     */
+    synchronized boolean takePending(GestureQueue.Entry out) {
+        if (!mPending) {
+            return false;
+        }
+        mPending = false;
+        out.mScanCode = mPendingScanCode;
+        out.mEventTimeNanos = mPendingEventTimeNanos;
+        out.mQueuedNanos = mPendingSinceNanos;
+        out.mProximityStartNanos = 0;
+        return true;
+    }
+
+    /**
+     * Records that the position was acted upon.
+     *
+     * @param changed false if the action found nothing to change
+     */
+    synchronized void onCommitted(int scanCode, boolean changed) {
+        mCommits++;
+        if (!changed) {
+            mUnchanged++;
+        }
+        mCommittedScanCode = scanCode;
+    }
+
+    /**
+     * Returns the scancode of the position the slider is in right now, if it
+     * differs from the last committed one and no move is pending. Returns 0
+     * if there is nothing to synchronize. Reads the driver state, so it must
+     * not be called from the input path.
+     */
+    int getUnsyncedScanCode() {
+        // The driver is read without holding the lock offer() takes on the
+        // input path. The scancode is read every time, as ConfigPanel may
+        // have changed it since the last sync.
+        final int scanCode = readScanCode(readPosition());
+        synchronized (this) {
+            mSyncs++;
+            if (mPending) {
+                // The pending move is newer than anything we could read
+                return 0;
+            }
+            return scanCode != mCommittedScanCode ? scanCode : 0;
+        }
+    }
+
+    /**
+     * Records how long a synchronization took.
+     *
+     * @param applied whether a position was committed
+     */
+    synchronized void onSynced(boolean applied, long durationNanos) {
+        if (applied) {
+            mSyncsApplied++;
+        }
+        mLastSyncNanos = durationNanos;
+        mMaxSyncNanos = Math.max(mMaxSyncNanos, durationNanos);
+    }
+
+    private static int readPosition() {
+        try {
+            final int state = Integer.parseInt(
+                    FileUtils.readTextFile(new File(SWITCH_STATE_NODE), 0, null).trim());
+            if (state >= 1 && state <= POSITION_NODES.length) {
+                return POSITION_TOP + state - 1;
+            }
+            Log.w(TAG, "Unexpected slider state " + state);
+        } catch (IOException | NumberFormatException e) {
+            Log.w(TAG, "Unable to read slider state from " + SWITCH_STATE_NODE, e);
+        }
+        return POSITION_UNKNOWN;
+    }
+
+    /**
+     * Returns the scancode the slider reports in the position, or 0 if
+     * unknown.
+     */
+    private static int readScanCode(int position) {
+        if (position == POSITION_UNKNOWN) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(
+                    FileUtils.readTextFile(new File(POSITION_NODES[position]), 0, null).trim());
+        } catch (IOException | NumberFormatException e) {
+            Log.w(TAG, "Unable to read slider mapping from " + POSITION_NODES[position], e);
+            return 0;
+        }
+    }
+
+    synchronized void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + "scancode=" + mCommittedScanCode
+                + (mPending ? " pending=" + mPendingScanCode : ""));
+        pw.println(prefix + "events=" + mEvents + " superseded=" + mSuperseded
+                + " commits=" + mCommits + " unchanged=" + mUnchanged);
+        pw.println(prefix + "syncs=" + mSyncs + " applied=" + mSyncsApplied
+                + " last=" + mLastSyncNanos / 1000 + "us max=" + mMaxSyncNanos / 1000 + "us");
+    }
+}
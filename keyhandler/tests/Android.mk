@@ -0,0 +1,36 @@
+#
+# Copyright (C) 2016 The CyanogenMod Project
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+
+LOCAL_PATH := $(call my-dir)
+include $(CLEAR_VARS)
+
+# The key handler is a library loaded into system_server, so the classes
+# under test are built into the test package itself
+LOCAL_SRC_FILES := \
+    $(call all-java-files-under, src) \
+    ../src/com/cyanogenmod/settings/device/GestureAction.java \
+    ../src/com/cyanogenmod/settings/device/GestureActionTable.java
+LOCAL_PACKAGE_NAME := KeyHandlerTests
+
+LOCAL_STATIC_JAVA_LIBRARIES := \
+    android-support-test \
+    junit
+
+LOCAL_JAVA_LIBRARIES := android.test.runner
+
+LOCAL_MODULE_TAGS := tests
+
+include $(BUILD_PACKAGE)
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.settings.device;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Parses gesture action configurations with a factory that accepts any
+ * action, so only the parser decides what is bound.
+ */
+@RunWith(AndroidJUnit4.class)
+public class GestureActionTableTest {
+
+    private static final class FakeAction extends GestureAction {
+        FakeAction(String name, String argument) {
+            super(argument != null ? name + ":" + argument : name);
+        }
+
+        @Override
+        boolean perform() {
+            return false;
+        }
+    }
+
+    private static final GestureActionTable.ActionFactory FACTORY =
+            new GestureActionTable.ActionFactory() {
+        @Override
+        public GestureAction createAction(String name, String argument) {
+            return new FakeAction(name, argument);
+        }
+    };
+
+    @Test
+    public void testParse() {
+        GestureActionTable table = GestureActionTable.parse(FACTORY,
+                "250=camera, 253=media:88,601=zen:2");
+        assertEquals("camera", table.get(250).toString());
+        assertEquals("media:88", table.get(253).toString());
+        assertEquals("zen:2", table.get(601).toString());
+        assertNull(table.get(251));
+    }
+
+    @Test
+    public void testLaterEntriesOverride() {
+        GestureActionTable table = GestureActionTable.parse(FACTORY,
+                "250=camera,252=torch", "250=torch");
+        assertEquals("torch", table.get(250).toString());
+        assertEquals("torch", table.get(252).toString());
+    }
+
+    @Test
+    public void testUnsupportedScanCodes() {
+        GestureActionTable table = GestureActionTable.parse(FACTORY,
+                "248=camera,255=camera,599=camera,604=camera");
+        assertNull(table.get(248));
+        assertNull(table.get(255));
+        assertNull(table.get(599));
+        assertNull(table.get(604));
+    }
+
+    @Test
+    public void testMalformedEntries() {
+        GestureActionTable table = GestureActionTable.parse(FACTORY,
+                "=camera,camera,25x=camera,,252=torch", null, "");
+        assertEquals("torch", table.get(252).toString());
+    }
+
+    @Test
+    public void testMissingArgument() {
+        GestureActionTable table = GestureActionTable.parse(FACTORY,
+                "250=media,251=media:,252=launch,253=key:,254=zen,601=ringer");
+        for (int scanCode = 250; scanCode <= 254; scanCode++) {
+            assertNull(table.get(scanCode));
+        }
+        assertNull(table.get(601));
+    }
+
+    @Test
+    public void testUnexpectedArgument() {
+        GestureActionTable table = GestureActionTable.parse(FACTORY,
+                "250=camera:1,252=torch");
+        assertNull(table.get(250));
+        assertNotNull(table.get(252));
+    }
+}